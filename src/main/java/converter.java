@@ -1,4 +1,5 @@
 //import ru.hemulen.h2pgsql.signer.Signer;
+import ru.hemulen.converter.messages.XMLTransformer;
 import ru.hemulen.converter.thread.*;
 
 import java.io.File;
@@ -17,14 +18,16 @@ public class converter {
             e.printStackTrace();
             System.exit(1);
         }
+        // Таблицы стилей из каталога XSLT_DIR (если он задан) заменяют встроенные в jar
+        XMLTransformer.configure(props);
 
         // RequestUpdater считывает message_id и send_timestamp запросов из базы H2 (или PostgreSQL) и обновляет log в psql
         RequestUpdater requestUpdater = new RequestUpdater(props);
         // ResponseUpdater считывает response_id и delivery_timestamp из базы H2 (или PostgreSQL) и обновляет log в psql
         ResponseUpdater responseUpdater = new ResponseUpdater(props);
-        // RequestProcessor обрабатывает запросы из requests и помещает результаты в папку prepared по приоритетам
+        // RequestProcessor обрабатывает запросы из requests, помещает результаты в папку prepared и ставит их в очередь отправки
         RequestProcessor requestProcessor = new RequestProcessor(props);
-        // RequestSender переносит файлы из prepared в порядке возрастания приоритета в папку OUT адаптера
+        // RequestSender переносит запросы из очереди отправки в папку OUT адаптера, поддерживая в ней окно из SEND_WINDOW запросов
         RequestSender requestSender = new RequestSender(props);
         // ResponseProcessor обрабатывает ответы из папки IN адаптера и помещает результаты в папку responses
         ResponseProcessor responseProcessor = new ResponseProcessor(props);
@@ -11,9 +11,12 @@ import java.util.Properties;
 public class Adapter13DB implements AutoCloseable {
     private static Logger LOG = LoggerFactory.getLogger(Adapter13DB.class.getName());
     Connection connection = null;
+    private String pgURL;               // Адрес базы адаптера (нужен для отдельного соединения уведомлений)
+    private Properties props;
 
     public Adapter13DB(Properties props) {
-        String pgURL = "jdbc:postgresql://" + props.getProperty("DB13_HOST") + ":" + props.getProperty("DB13_PORT") + "/" + props.getProperty("DB13_DB");
+        this.props = props;
+        pgURL = "jdbc:postgresql://" + props.getProperty("DB13_HOST") + ":" + props.getProperty("DB13_PORT") + "/" + props.getProperty("DB13_DB");
         try {
             Class.forName("org.postgresql.Driver");
             connection = DriverManager.getConnection(pgURL, props.getProperty("DB13_USER"), props.getProperty("DB13_PASS"));
@@ -28,52 +31,105 @@ public class Adapter13DB implements AutoCloseable {
         }
     }
 
-    public void close() {
+    /**
+     * Метод создает поток уведомлений об изменениях в базе этого instance адаптера (см. ChangeFeed).
+     * Поток нужно запустить методом start.
+     * @param name     Имя потока
+     * @param channel  Канал уведомлений (converter_request или converter_response)
+     * @param onChange Действие при уведомлении
+     * @return Поток уведомлений
+     */
+    public ChangeFeed listen(String name, String channel, Runnable onChange) {
+        return new ChangeFeed(name, pgURL,
+                props.getProperty("DB13_USER"), props.getProperty("DB13_PASS"), channel, onChange);
+    }
+
+    /**
+     * Метод заново открывает соединение с базой второго instance адаптера, если оно разорвано (например, после перезапуска базы).
+     * Если восстановить соединение не удалось, то попытка повторяется при следующей ошибке.
+     */
+    public void reconnect() {
         try {
-            connection.close();
+            if (connection != null && connection.isValid(5)) {
+                return;
+            }
         } catch (SQLException e) {
             LOG.error(e.getMessage());
         }
+        close();
+        try {
+            connection = DriverManager.getConnection(pgURL, props.getProperty("DB13_USER"), props.getProperty("DB13_PASS"));
+            LOG.info("Восстановлено соединение с базой PostgreSQL второго instance адаптера.");
+        } catch (SQLException e) {
+            LOG.error("Не удалось восстановить соединение с базой PostgreSQL второго instance адаптера.");
+            LOG.error(e.getMessage());
+        }
     }
 
-    public ResultSet getRequests(Timestamp timestamp) {
+    public void close() {
+        if (connection == null) {
+            return;
+        }
         try {
-            String sql = "SELECT\n" +
-                    "md.ID ,\n" +
-                    "md.MESSAGE_ID ,\n" +
-                    "md.SENDING_DATE \n" +
-                    "FROM CORE.MESSAGE_METADATA md\n" +
-                    "LEFT JOIN CORE.MESSAGE_STATE st ON md.ID = st.ID\n" +
-                    "WHERE (1=1)\n" +
-                    "AND md.MESSAGE_TYPE = 'REQUEST'\n" +
-                    "AND md.CREATION_DATE >= '" + timestamp.toString() + "'\n" +
-                    "ORDER BY md.CREATION_DATE";
-            Statement stmt = connection.createStatement();
-            return stmt.executeQuery(sql);
+            connection.close();
         } catch (SQLException e) {
             LOG.error(e.getMessage());
-            return null;
         }
     }
 
-    public ResultSet getResponses(Timestamp timestamp) {
+    /**
+     * Метод возвращает страницу запросов, отправленных адаптером после позиции синхронизации,
+     * в порядке времени отправки и идентификатора. Запрос закрывается вместе с возвращенным ResultSet.
+     * @param position Позиция синхронизации запросов этого instance адаптера
+     * @param pageSize Максимальное количество записей на странице
+     * @return Страница с идентификатором (ClientID), MESSAGE_ID и временем отправки запросов
+     */
+    public ResultSet getRequests(SyncPosition position, int pageSize) throws SQLException {
+        String sql = "SELECT\n" +
+                "md.ID ,\n" +
+                "md.MESSAGE_ID ,\n" +
+                "md.SENDING_DATE \n" +
+                "FROM CORE.MESSAGE_METADATA md\n" +
+                "WHERE md.MESSAGE_TYPE = 'REQUEST'\n" +
+                "AND " + position.condition("md.SENDING_DATE", "md.ID") + "\n" +
+                "ORDER BY md.SENDING_DATE, md.ID\n" +
+                "LIMIT ?";
+        return getPage(sql, position, pageSize);
+    }
+
+    /**
+     * Метод возвращает страницу ответов (кроме статусов), полученных адаптером после позиции синхронизации,
+     * в порядке времени получения и идентификатора. Запрос закрывается вместе с возвращенным ResultSet.
+     * @param position Позиция синхронизации ответов этого instance адаптера
+     * @param pageSize Максимальное количество записей на странице
+     * @return Страница с идентификатором запроса, MESSAGE_ID, временем получения и идентификатором ответа
+     */
+    public ResultSet getResponses(SyncPosition position, int pageSize) throws SQLException {
+        String sql = "SELECT \n" +
+                "md.REFERENCE_ID ,\n" +
+                "md.MESSAGE_ID ,\n" +
+                "md.DELIVERY_DATE ,\n" +
+                "md.ID \n" +
+                "FROM CORE.MESSAGE_METADATA md\n" +
+                "LEFT JOIN CORE.MESSAGE_CONTENT mc ON md.ID=mc.ID \n" +
+                "WHERE md.MESSAGE_TYPE = 'RESPONSE'\n" +
+                "AND mc.MODE <> 'STATUS' \n" +
+                "AND " + position.condition("md.DELIVERY_DATE", "md.ID") + "\n" +
+                "ORDER BY md.DELIVERY_DATE, md.ID\n" +
+                "LIMIT ?";
+        return getPage(sql, position, pageSize);
+    }
+
+    private ResultSet getPage(String sql, SyncPosition position, int pageSize) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
         try {
-            String sql = "SELECT \n" +
-                    "md.REFERENCE_ID ,\n" +
-                    "md.MESSAGE_ID ,\n" +
-                    "md.DELIVERY_DATE \n" +
-                    "FROM CORE.MESSAGE_METADATA md\n" +
-                    "LEFT JOIN CORE.MESSAGE_CONTENT mc ON md.ID=mc.ID \n" +
-                    "WHERE md.MESSAGE_TYPE = 'RESPONSE'\n" +
-                    "AND mc.MODE <> 'STATUS' \n" +
-                    "AND md.DELIVERY_DATE >= '" + timestamp + "'\n" +
-                    "ORDER BY md.DELIVERY_DATE";
-            Statement stmt = connection.createStatement();
-            ResultSet result = stmt.executeQuery(sql);
-            return result;
+            statement.setFetchSize(pageSize);
+            statement.setInt(position.bind(statement, 1), pageSize);
+            statement.closeOnCompletion();
+            return statement.executeQuery();
         } catch (SQLException e) {
-            LOG.error(e.getMessage());
-            return null;
+            statement.close();
+            throw e;
         }
     }
 
@@ -0,0 +1,171 @@
+package ru.hemulen.converter.db;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Поток получения уведомлений об изменениях в базе instance адаптера (PostgreSQL LISTEN/NOTIFY).
+ * <p>
+ * При подключении поток устанавливает в базе адаптера триггер на CORE.MESSAGE_METADATA (если его еще нет),
+ * который при добавлении записи или изменении SENDING_DATE/DELIVERY_DATE отправляет уведомление в канал
+ * converter_request или converter_response по типу сообщения. Поток слушает свой канал на отдельном соединении
+ * и при каждом уведомлении вызывает onChange, то есть будит поток синхронизации, который забирает новые записи
+ * постранично (см. SyncPosition). Уведомления одной транзакции PostgreSQL объединяет, поэтому пакетная
+ * вставка адаптера будит поток синхронизации один раз.
+ * <p>
+ * Если соединение разорвано, то поток переподключается и вызывает onChange, чтобы забрать пропущенные записи.
+ * Пока уведомления не работают (isListening() == false), поток синхронизации опрашивает базу по таймеру, как прежде.
+ */
+public class ChangeFeed extends Thread {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeFeed.class.getName());
+    private static final int POLL_TIMEOUT = 1000;       // Время ожидания уведомлений за одно обращение (мс)
+    private static final long RECONNECT_DELAY = 30000;  // Пауза перед повторным подключением (мс)
+    private static final String TRIGGER_FUNCTION = "CREATE OR REPLACE FUNCTION CORE.CONVERTER_NOTIFY() RETURNS trigger AS $$\n" +
+            "BEGIN\n" +
+            "  PERFORM pg_notify('converter_' || lower(NEW.MESSAGE_TYPE), '');\n" +
+            "  RETURN NULL;\n" +
+            "END;\n" +
+            "$$ LANGUAGE plpgsql";
+    private static final String TRIGGER = "CREATE TRIGGER CONVERTER_NOTIFY\n" +
+            "AFTER INSERT OR UPDATE OF SENDING_DATE, DELIVERY_DATE ON CORE.MESSAGE_METADATA\n" +
+            "FOR EACH ROW EXECUTE PROCEDURE CORE.CONVERTER_NOTIFY()";
+    private final String url;
+    private final String user;
+    private final String password;
+    private final String channel;       // Канал уведомлений (converter_request или converter_response)
+    private final Runnable onChange;    // Действие при уведомлении
+    private Connection connection;      // Отдельное соединение, на котором ожидаются уведомления
+    private volatile boolean isListening;
+    private volatile boolean isRunnable = true;
+
+    /**
+     * @param name     Имя потока
+     * @param url      Адрес базы instance адаптера
+     * @param user     Пользователь базы адаптера
+     * @param password Пароль пользователя
+     * @param channel  Канал уведомлений
+     * @param onChange Действие при уведомлении
+     */
+    public ChangeFeed(String name, String url, String user, String password, String channel, Runnable onChange) {
+        setName(name);
+        setDaemon(true);
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.channel = channel;
+        this.onChange = onChange;
+    }
+
+    /**
+     * Метод возвращает признак того, что уведомления приходят, и опрос базы по таймеру можно делать реже
+     */
+    public boolean isListening() {
+        return isListening;
+    }
+
+    public void run() {
+        while (isRunnable) {
+            try {
+                if (connection == null) {
+                    connect();
+                    // Записи, появившиеся до подписки на уведомления (или пока соединение было разорвано)
+                    onChange.run();
+                }
+                PGNotification[] notifications = connection.unwrap(PGConnection.class).getNotifications(POLL_TIMEOUT);
+                if (notifications != null && notifications.length > 0) {
+                    onChange.run();
+                }
+            } catch (SQLException e) {
+                if ("42501".equals(e.getSQLState())) {
+                    // Без прав на установку триггера уведомлений не будет, и база опрашивается по таймеру
+                    LOG.error(String.format("Недостаточно прав для установки триггера уведомлений в базе адаптера %s. Уведомления отключены.", url));
+                    LOG.error(e.getMessage());
+                    break;
+                }
+                LOG.error(String.format("Уведомления канала %s из базы адаптера %s не получены. Повторное подключение через %d мс.", channel, url, RECONNECT_DELAY));
+                LOG.error(e.getMessage());
+                disconnect();
+                try {
+                    sleep(RECONNECT_DELAY);
+                } catch (InterruptedException ie) {
+                    isRunnable = false;
+                }
+            }
+        }
+        disconnect();
+    }
+
+    /**
+     * Метод останавливает поток
+     */
+    public void close() {
+        isRunnable = false;
+        interrupt();
+    }
+
+    /**
+     * Метод подключается к базе адаптера, устанавливает триггер и подписывается на канал
+     */
+    private void connect() throws SQLException {
+        connection = DriverManager.getConnection(url, user, password);
+        try (Statement statement = connection.createStatement()) {
+            installTrigger(statement);
+            statement.execute("LISTEN " + channel);
+        }
+        isListening = true;
+        LOG.info(String.format("Получение уведомлений канала %s из базы адаптера %s включено.", channel, url));
+    }
+
+    /**
+     * Метод устанавливает триггер уведомлений, если его еще нет. Триггер общий для всех каналов и потоков конвертера,
+     * поэтому проверка и установка выполняются одной транзакцией под рекомендательной блокировкой:
+     * потоки уведомлений (и другие экземпляры конвертера) устанавливают триггер по очереди, и второй видит триггер первого.
+     */
+    private void installTrigger(Statement statement) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            // Блокировка снимается при завершении транзакции
+            statement.execute("SELECT pg_advisory_xact_lock(hashtext('converter_notify'))");
+            boolean exists;
+            try (ResultSet resultSet = statement.executeQuery("SELECT 1 FROM pg_trigger WHERE tgname = 'converter_notify' AND NOT tgisinternal")) {
+                exists = resultSet.next();
+            }
+            if (!exists) {
+                statement.execute(TRIGGER_FUNCTION);
+                statement.execute(TRIGGER);
+            }
+            connection.commit();
+            if (!exists) {
+                LOG.info(String.format("В базе адаптера %s установлен триггер уведомлений CONVERTER_NOTIFY.", url));
+            }
+        } catch (SQLException e) {
+            connection.rollback();
+            // Триггер мог установить вручную тот, кто не берет блокировку, - он уже есть, и это не ошибка
+            if (!"42710".equals(e.getSQLState())) {
+                throw e;
+            }
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private void disconnect() {
+        isListening = false;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.error(e.getMessage());
+            }
+            connection = null;
+        }
+    }
+}
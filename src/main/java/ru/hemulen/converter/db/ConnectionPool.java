@@ -0,0 +1,255 @@
+package ru.hemulen.converter.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пул соединений с базой PostgreSQL конвертера, общий для всех потоков.
+ * <p>
+ * Каждый экземпляр ConverterDB берет соединение из пула на время одного метода и сразу возвращает его, поэтому
+ * рабочие потоки RequestProcessor, обработчики ответов и потоки обновления статусов могут обращаться к базе
+ * одновременно, не разделяя одно соединение. Соединения создаются по мере необходимости, но не больше PG_POOL_SIZE.
+ * <p>
+ * К каждому соединению привязан кэш подготовленных запросов (PreparedStatement) по тексту SQL. Повторное выполнение
+ * того же запроса не создает новый PreparedStatement, поэтому драйвер PostgreSQL после нескольких выполнений
+ * переводит его в серверный подготовленный запрос, и сервер не планирует одинаковый SQL заново.
+ */
+public class ConnectionPool {
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class.getName());
+    private static final long VALIDATION_INTERVAL = 30000;  // Соединение, простоявшее дольше, проверяется перед выдачей (мс)
+    private static final int VALIDATION_TIMEOUT = 5;        // Время ожидания проверки соединения (с)
+    private static final int MIN_STATEMENT_CACHE = 8;       // Кэш не меньше количества запросов, одновременно открытых в одном методе
+    private static final Map<String, ConnectionPool> pools = new HashMap<>();  // Пулы по адресу базы и пользователю
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;              // Максимальное количество соединений
+    private final int statementCacheSize;   // Максимальное количество подготовленных запросов на соединение
+    private final long borrowTimeout;       // Максимальное время ожидания свободного соединения (мс)
+    private final LinkedBlockingDeque<Lease> idle = new LinkedBlockingDeque<>();   // Свободные соединения
+    private int size;                       // Количество открытых соединений
+    private int users;                      // Количество экземпляров ConverterDB, использующих пул
+    private volatile boolean released;      // Признак того, что пул освобожден и соединения в него не возвращаются
+
+    private ConnectionPool(String url, String user, String password, int maxSize, int statementCacheSize, long borrowTimeout) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = Math.max(maxSize, 1);
+        this.statementCacheSize = Math.max(statementCacheSize, MIN_STATEMENT_CACHE);
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * Метод возвращает общий пул для базы, описанной в параметрах, и создает его при первом обращении.
+     * Пул освобождается методом release, когда его перестает использовать последний экземпляр ConverterDB.
+     *
+     * @param url   Адрес базы данных
+     * @param props Параметры конфигурации (PG_USER, PG_PASS, PG_POOL_SIZE, PG_STATEMENT_CACHE, PG_POOL_TIMEOUT)
+     * @return Пул соединений
+     * @throws SQLException не удалось открыть первое соединение
+     */
+    public static synchronized ConnectionPool acquire(String url, Properties props) throws SQLException {
+        String user = props.getProperty("PG_USER");
+        String key = url + "|" + user;
+        ConnectionPool pool = pools.get(key);
+        if (pool == null) {
+            pool = new ConnectionPool(url, user, props.getProperty("PG_PASS"),
+                    Integer.parseInt(props.getProperty("PG_POOL_SIZE", "8").trim()),
+                    Integer.parseInt(props.getProperty("PG_STATEMENT_CACHE", "64").trim()),
+                    Long.parseLong(props.getProperty("PG_POOL_TIMEOUT", "30000").trim()));
+            // Первое соединение открывается сразу, чтобы ошибка подключения обнаружилась при запуске
+            pool.lease().close();
+            pools.put(key, pool);
+            LOG.info(String.format("Создан пул соединений с %s: до %d соединений.", url, pool.maxSize));
+        }
+        pool.users++;
+        return pool;
+    }
+
+    /**
+     * Метод освобождает пул. Когда пул перестает использовать последний экземпляр ConverterDB, соединения закрываются.
+     */
+    public void release() {
+        synchronized (ConnectionPool.class) {
+            if (--users > 0) {
+                return;
+            }
+            pools.remove(url + "|" + user);
+            released = true;
+        }
+        Lease lease;
+        while ((lease = idle.poll()) != null) {
+            lease.discard();
+        }
+    }
+
+    /**
+     * Метод выдает соединение из пула. Соединение возвращается в пул методом close (удобно в try-with-resources).
+     *
+     * @return Соединение с кэшем подготовленных запросов
+     * @throws SQLException не удалось открыть соединение или дождаться свободного
+     */
+    public Lease lease() throws SQLException {
+        while (true) {
+            Lease lease = idle.pollFirst();
+            if (lease == null) {
+                if (reserveSlot()) {
+                    try {
+                        return new Lease(DriverManager.getConnection(url, user, password));
+                    } catch (SQLException e) {
+                        releaseSlot();
+                        throw e;
+                    }
+                }
+                try {
+                    lease = idle.pollFirst(borrowTimeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Ожидание соединения с базой прервано.", e);
+                }
+                if (lease == null) {
+                    throw new SQLException(String.format("Нет свободного соединения с базой в течение %d мс.", borrowTimeout));
+                }
+            }
+            if (lease.isAlive()) {
+                return lease;
+            }
+            // Соединение, разорванное за время простоя, закрывается, и берется следующее
+            lease.discard();
+        }
+    }
+
+    private synchronized boolean reserveSlot() {
+        if (size >= maxSize) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    private synchronized void releaseSlot() {
+        size--;
+    }
+
+    /**
+     * Соединение, выданное из пула, с кэшем подготовленных запросов
+     */
+    public class Lease implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;  // Подготовленные запросы по тексту SQL (вытесняются самые давние)
+        private long lastUsed = System.currentTimeMillis();
+
+        private Lease(Connection connection) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= statementCacheSize) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        /**
+         * Метод возвращает подготовленный запрос из кэша соединения или подготавливает новый
+         *
+         * @param sql Текст запроса
+         * @return Подготовленный запрос, параметры которого нужно установить заново
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null || statement.isClosed()) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * Метод возвращает соединение для управления транзакцией. Соединение нельзя закрывать,
+         * а перед возвратом в пул нужно восстановить автоматическую фиксацию.
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Метод создает обычный (не кэшируемый) запрос для редко выполняемого SQL. Запрос закрывает вызывающий метод.
+         */
+        public Statement createStatement() throws SQLException {
+            return connection.createStatement();
+        }
+
+        /**
+         * Метод возвращает соединение в пул. Закрытое драйвером (разорванное) соединение в пул не возвращается,
+         * а соединение, возвращаемое в уже освобожденный пул, закрывается.
+         */
+        @Override
+        public void close() {
+            boolean closed;
+            try {
+                closed = connection.isClosed();
+            } catch (SQLException e) {
+                closed = true;
+            }
+            if (closed || released) {
+                discard();
+                return;
+            }
+            lastUsed = System.currentTimeMillis();
+            idle.offerFirst(this);
+            // Пул могли освободить, пока соединение возвращалось, - тогда его уже некому закрыть
+            if (released && idle.remove(this)) {
+                discard();
+            }
+        }
+
+        private boolean isAlive() {
+            try {
+                if (System.currentTimeMillis() - lastUsed < VALIDATION_INTERVAL) {
+                    return !connection.isClosed();
+                }
+                return connection.isValid(VALIDATION_TIMEOUT);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private void discard() {
+            for (PreparedStatement statement : statements.values()) {
+                closeQuietly(statement);
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.error(e.getMessage());
+            }
+            releaseSlot();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOG.error(e.getMessage());
+        }
+    }
+}
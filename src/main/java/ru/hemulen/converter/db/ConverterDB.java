@@ -2,27 +2,35 @@ package ru.hemulen.converter.db;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.hemulen.converter.messages.OverlimitBatch;
 
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
 import java.sql.*;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 /**
  * Класс PG предназначен для установки соединения с базой PostgreSQL, в которой ведутся логи конвертера и
  * хранится некая служебная информация.
- * Все запросы к PostgreSQL выполняются методами класса.
+ * Все запросы к PostgreSQL выполняются методами класса через общий пул соединений (ConnectionPool)
+ * подготовленными запросами, которые кэшируются в каждом соединении пула.
  */
 public class ConverterDB implements AutoCloseable {
     private static Logger LOG = LoggerFactory.getLogger(ConverterDB.class.getName());
-    Connection connection = null;
+    private static final int OVERLIMIT_BATCH_ROWS = 1000;  // Строк в одном INSERT сверхлимитных запросов (4 параметра на строку при пределе 32767)
+    private static RowSetFactory rowSetFactory;             // Фабрика отсоединенных ResultSet
+    private static LogWriter writer;    // Поток отложенной записи лога или null, если записи выполняются синхронно
+    ConnectionPool pool = null;
     String schema;
-    PreparedStatement requestsPS = null;
-    PreparedStatement responsesPS = null;
 
     /**
-     * Конструктор устанавливает соединение с БД, параметры которой описаны в Properties.
-     * Кроме того, конструктор создает два PreparedStatement для обновления времени отправки/получения
-     * запросов и ответов в таблице log.
+     * Конструктор подключается к общему пулу соединений с БД, параметры которой описаны в Properties.
+     * Экземпляр не держит собственного соединения и может использоваться из нескольких потоков одновременно.
      * @param props Параметры подключения к базе PostgreSQL.
      */
     public ConverterDB(Properties props) {
@@ -35,16 +43,9 @@ public class ConverterDB implements AutoCloseable {
             System.exit(2);
         }
         schema = props.getProperty("MNEMONIC");
-        String requestsSQL = "UPDATE \"" + schema + "\".log SET \n" +
-                "(message_id, send_timestamp, status)=(?, ?, CASE WHEN status = 'PREPARED' THEN 'SENT' ELSE status END)\n" +
-                "WHERE client_id = ?";
-        String responsesSQL = "UPDATE \"" + schema + "\".log SET \n" +
-                "(response_id, response_timestamp)=(?,?)\n" +
-                "WHERE client_id = ?";
         try {
-            connection = DriverManager.getConnection(pgURL, props.getProperty("PG_USER"), props.getProperty("PG_PASS"));
-            requestsPS = connection.prepareStatement(requestsSQL);
-            responsesPS = connection.prepareStatement(responsesSQL);
+            pool = ConnectionPool.acquire(pgURL, props);
+            startWriter(pool, props);
         } catch (SQLException e) {
             LOG.error("Не удалось установить соединение с базой PostgreSQL!");
             LOG.error(e.getMessage());
@@ -53,121 +54,250 @@ public class ConverterDB implements AutoCloseable {
     }
 
     /**
-     * Метод закрывает оба PreparedStatement, а затем закрывает соединение с БД PostgreSQL.
+     * Метод запускает общий поток отложенной записи лога, если он включен в конфигурации (LOG_WRITE_BEHIND)
+     * и еще не запущен. При завершении приложения поток дописывает буфер.
      */
-    public void close() {
-        try {
-            requestsPS.close();
-            responsesPS.close();
-            connection.close();
-        } catch (SQLException e) {
-            LOG.error(e.getMessage());
+    private static synchronized void startWriter(ConnectionPool pool, Properties props) {
+        if (writer != null || !Boolean.parseBoolean(props.getProperty("LOG_WRITE_BEHIND", "false").trim())) {
+            return;
         }
+        writer = new LogWriter(pool,
+                Integer.parseInt(props.getProperty("LOG_BUFFER_SIZE", "10000").trim()),
+                Long.parseLong(props.getProperty("LOG_FLUSH_INTERVAL", "5").trim()),
+                Integer.parseInt(props.getProperty("LOG_BATCH_SIZE", "500").trim()),
+                Integer.parseInt(props.getProperty("LOG_COPY_THRESHOLD", "100").trim()));
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(writer::shutdown, "LogWriterShutdownThread"));
+        LOG.info("Запущен поток отложенной записи лога.");
     }
 
     /**
-     * Метод получает на вход список ClientID запросов, которые созданы в базе H2 с определенного момента.
-     * Для каждой записи из resultSet метод обновляет message_id, send_timestamp и status записи запроса в таблице log.
-     * Метод возвращает максимальное значение send_timestamp из resultSet.
-     * @param resultSet Список запросов, созданных в базе H2, начиная с определенного момента времени.
-     * @return Максимальное значение send_timestamp из resultSet.
+     * Метод выполняет запись в лог: через поток отложенной записи, если он запущен, иначе - сразу
+     * @param sql     Текст запроса
+     * @param binder  Установка параметров запроса
+     * @param comment Описание записи для лога приложения на случай ошибки
      */
-    public Timestamp updateRequests(ResultSet resultSet) { // resultSet закрывается в вызывающем методе
-        Timestamp latestTimestamp = null;
-        Timestamp currentTimestamp;
-        if (resultSet == null) return latestTimestamp;
-        try {
-            while (resultSet.next()) {
-                // 1 - clientID запроса
-                // 2 - messageID запроса
-                // 3 - время отправки запроса SENDING_DATE
-                requestsPS.setString(1, resultSet.getString(2));
-                requestsPS.setTimestamp(2, resultSet.getTimestamp(3));
-                requestsPS.setString(3, resultSet.getString(1));
-                requestsPS.executeUpdate();
-                currentTimestamp= resultSet.getTimestamp(3);
-                // Сохраняем самое позднее время отправки запроса из resultSet
-                if (latestTimestamp == null) {
-                    latestTimestamp = currentTimestamp;
-                } else if (currentTimestamp.after(latestTimestamp)) {
-                    latestTimestamp = currentTimestamp;
-                }
-            }
+    private void write(String sql, LogWriter.Binder binder, String comment) throws SQLException {
+        write(sql, binder, null, null, comment);
+    }
 
-        } catch (SQLException | NullPointerException e) {
-            LOG.error(e.getMessage());
+    /**
+     * Метод выполняет запись в лог, которую поток отложенной записи при наплыве может выполнить командой COPY
+     * @param copySql Команда COPY ... FROM STDIN, равнозначная запросу
+     * @param copyRow Строка данных COPY
+     */
+    private void write(String sql, LogWriter.Binder binder, String copySql, String copyRow, String comment) throws SQLException {
+        if (writer != null) {
+            writer.write(sql, binder, copySql, copyRow, comment);
+            return;
+        }
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            PreparedStatement statement = lease.prepare(sql);
+            binder.bind(statement);
+            statement.executeUpdate();
         }
-        return latestTimestamp;
     }
 
     /**
-     * Метод получает на вход список ClientID ответов, которые созданы в базе адаптера с определенного момента.
-     * Для каждой записи из resultSet метод обновляет response_id и response_timestamp записи соответствующего запроса в таблице log.
-     * Метод возвращает максимальное значение response_timestamp из resultSet.
-     * @param resultSet Список запросов, созданных в базе адаптера, начиная с определенного момента времени.
-     * @return Максимальное значение send_timestamp из resultSet.
+     * Метод ждет, пока поток отложенной записи выполнит все поставленные в буфер записи
      */
-    public Timestamp updateResponses(ResultSet resultSet) {
-        Timestamp latestTimestamp = null;
+    private static void syncWriter() {
+        if (writer == null) {
+            return;
+        }
         try {
-            while (resultSet.next()) { // resultSet закрывается в вызывающем методе
-                // 1 - clientID запроса
-                // 2 - messageID ответа
-                // 3 - время получения ответа
-                responsesPS.setString(1, resultSet.getString(2));
-                responsesPS.setTimestamp(2, resultSet.getTimestamp(3));
-                responsesPS.setString(3, resultSet.getString(1));
-                responsesPS.executeUpdate();
-                latestTimestamp = resultSet.getTimestamp(3);
+            writer.sync();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Метод возвращает условие, запрещающее менять статус записи, если она находится в одном из статусов keepStatuses.
+     * Проверка выполняется в самом UPDATE, поэтому не зависит от того, записаны ли в базу предыдущие статусы.
+     */
+    private static String keepCondition(String[] keepStatuses) {
+        if (keepStatuses.length == 0) {
+            return "";
+        }
+        StringBuilder condition = new StringBuilder(" AND (status IS NULL OR status NOT IN (");
+        for (int i = 0; i < keepStatuses.length; i++) {
+            condition.append(i == 0 ? "?" : ", ?");
+        }
+        return condition.append("))").toString();
+    }
+
+    /**
+     * Метод освобождает пул соединений. Соединения закрываются, когда пул освободит последний экземпляр ConverterDB.
+     */
+    public void close() {
+        pool.release();
+    }
+
+    /**
+     * Метод получает на вход страницу запросов, отправленных адаптером после позиции синхронизации,
+     * и обновляет message_id, send_timestamp и status записей этих запросов в таблице log одним запросом UPDATE ... FROM (VALUES ...).
+     * После обновления позиция переносится на последнюю запись страницы.
+     * @param page     Страница запросов из базы адаптера (ClientID, MESSAGE_ID, SENDING_DATE); закрывается в вызывающем методе
+     * @param position Позиция синхронизации запросов instance адаптера
+     * @return Количество записей на странице
+     */
+    public int updateRequests(ResultSet page, SyncPosition position) throws SQLException {
+        Map<String, Object[]> rows = new LinkedHashMap<>();
+        Timestamp lastTimestamp = null;
+        String lastID = null;
+        while (page.next()) {
+            // 1 - clientID запроса
+            // 2 - messageID запроса
+            // 3 - время отправки запроса SENDING_DATE
+            lastID = page.getString(1);
+            lastTimestamp = page.getTimestamp(3);
+            rows.put(lastID, new Object[]{lastID, page.getString(2), lastTimestamp});
+        }
+        String sql = "UPDATE \"" + schema + "\".log l SET \n" +
+                "(message_id, send_timestamp, status)=(v.message_id, v.send_timestamp, CASE WHEN l.status = 'PREPARED' THEN 'SENT' ELSE l.status END)\n" +
+                "FROM (VALUES %s) AS v (client_id, message_id, send_timestamp)\n" +
+                "WHERE l.client_id = v.client_id\n" +
+                // Записи, повторно прочитанные из окна SYNC_LOOKBACK, не переписываются
+                "AND (l.message_id IS DISTINCT FROM v.message_id OR l.send_timestamp IS DISTINCT FROM v.send_timestamp OR l.status = 'PREPARED')";
+        updateFromValues(sql, "(CAST(? AS VARCHAR), CAST(? AS VARCHAR), CAST(? AS TIMESTAMP))", rows.values());
+        // Позиция переносится только после успешного обновления, иначе страница будет прочитана заново
+        if (lastID != null) {
+            position.advance(lastTimestamp, lastID);
+        }
+        return rows.size();
+    }
+
+    /**
+     * Метод получает на вход страницу ответов, полученных адаптером после позиции синхронизации,
+     * и обновляет response_id и response_timestamp записей соответствующих запросов в таблице log одним запросом.
+     * Если на странице несколько ответов на один запрос, то записывается последний из них.
+     * После обновления позиция переносится на последнюю запись страницы.
+     * @param page     Страница ответов из базы адаптера (REFERENCE_ID, MESSAGE_ID, DELIVERY_DATE, ID); закрывается в вызывающем методе
+     * @param position Позиция синхронизации ответов instance адаптера
+     * @return Количество записей на странице
+     */
+    public int updateResponses(ResultSet page, SyncPosition position) throws SQLException {
+        Map<String, Object[]> rows = new LinkedHashMap<>();
+        Timestamp lastTimestamp = null;
+        String lastID = null;
+        int count = 0;
+        while (page.next()) {
+            // 1 - clientID запроса
+            // 2 - messageID ответа
+            // 3 - время получения ответа
+            // 4 - идентификатор ответа в базе адаптера
+            String clientID = page.getString(1);
+            rows.remove(clientID);
+            lastTimestamp = page.getTimestamp(3);
+            lastID = page.getString(4);
+            rows.put(clientID, new Object[]{clientID, page.getString(2), lastTimestamp});
+            count++;
+        }
+        String sql = "UPDATE \"" + schema + "\".log l SET \n" +
+                "(response_id, response_timestamp)=(v.response_id, v.response_timestamp)\n" +
+                "FROM (VALUES %s) AS v (client_id, response_id, response_timestamp)\n" +
+                "WHERE l.client_id = v.client_id\n" +
+                "AND (l.response_id IS DISTINCT FROM v.response_id OR l.response_timestamp IS DISTINCT FROM v.response_timestamp)";
+        updateFromValues(sql, "(CAST(? AS VARCHAR), CAST(? AS VARCHAR), CAST(? AS TIMESTAMP))", rows.values());
+        if (lastID != null) {
+            position.advance(lastTimestamp, lastID);
+        }
+        return count;
+    }
+
+    /**
+     * Метод выполняет UPDATE ... FROM (VALUES ...) со строками rows
+     * @param sql  Текст запроса с %s на месте списка строк VALUES
+     * @param row  Строка VALUES с параметрами
+     * @param rows Значения параметров строк
+     */
+    private void updateFromValues(String sql, String row, Collection<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        // Записи запросов могут еще ждать в буфере отложенной записи
+        syncWriter();
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < rows.size(); i++) {
+            values.append(i == 0 ? "" : ", ").append(row);
+        }
+        // Текст запроса зависит от количества строк страницы, поэтому запрос не кэшируется: он не должен вытеснять
+        // из кэша соединения часто выполняемые запросы записи в лог
+        try (ConnectionPool.Lease lease = pool.lease();
+             PreparedStatement statement = lease.getConnection().prepareStatement(String.format(sql, values))) {
+            int parameter = 1;
+            for (Object[] rowValues : rows) {
+                for (Object value : rowValues) {
+                    statement.setObject(parameter++, value);
+                }
             }
-        } catch (SQLException | NullPointerException e) {
-            LOG.error(e.getMessage());
+            statement.executeUpdate();
         }
-        return latestTimestamp;
     }
 
     public Timestamp getLastRequestTimestamp() throws SQLException {
         String sql = String.format("SELECT  request_timestamp FROM \"%s\".timestamps;", schema);
-        Statement statement = connection.createStatement();
-        ResultSet resultSet = statement.executeQuery(sql);
-        resultSet.next();
-        Timestamp result = resultSet.getTimestamp(1);
-        resultSet.close();
-        statement.close();
-        return result;
+        try (ConnectionPool.Lease lease = pool.lease();
+             ResultSet resultSet = lease.prepare(sql).executeQuery()) {
+            resultSet.next();
+            return resultSet.getTimestamp(1);
+        }
     }
 
     public Timestamp getLastResponseTimestamp() throws SQLException {
         String sql = String.format("SELECT response_timestamp FROM \"%s\".timestamps;", schema);
-        Statement statement = connection.createStatement();
-        ResultSet resultSet = statement.executeQuery(sql);
-        resultSet.next();
-        Timestamp result = resultSet.getTimestamp(1);
-        resultSet.close();
-        statement.close();
-        return result;
+        try (ConnectionPool.Lease lease = pool.lease();
+             ResultSet resultSet = lease.prepare(sql).executeQuery()) {
+            resultSet.next();
+            return resultSet.getTimestamp(1);
+        }
     }
 
     public void setLastRequestTimestamp(Timestamp timestamp) throws SQLException {
-        String sql = String.format("UPDATE \"%s\".timestamps SET request_timestamp = '%s';", schema, timestamp);
-        Statement statement = connection.createStatement();
-        statement.executeUpdate(sql);
-        statement.close();
+        String sql = String.format("UPDATE \"%s\".timestamps SET request_timestamp = ?;", schema);
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            PreparedStatement statement = lease.prepare(sql);
+            statement.setTimestamp(1, timestamp);
+            statement.executeUpdate();
+        }
     }
 
     public void setLastResponseTimestamp(Timestamp timestamp) throws SQLException {
-        String sql = String.format("UPDATE \"%s\".timestamps SET response_timestamp = '%s';", schema, timestamp);
-        Statement statement = connection.createStatement();
-        statement.executeUpdate(sql);
-        statement.close();
+        String sql = String.format("UPDATE \"%s\".timestamps SET response_timestamp = ?;", schema);
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            PreparedStatement statement = lease.prepare(sql);
+            statement.setTimestamp(1, timestamp);
+            statement.executeUpdate();
+        }
     }
 
-    public void logOverlimitRequest(String file_name, String vs_name, Integer msg_index, String keywords) throws SQLException {
-        String sql = String.format("INSERT INTO \"%s\".log (log_id, file_name, receipt_timestamp, status, msg_index, vs_name, keywords) " +
-                "VALUES (DEFAULT, '%s', DEFAULT, 'OVERLIMIT', '%d', '%s', '%s')", schema, file_name, msg_index, vs_name, keywords);
-        Statement statement = connection.createStatement();
-        statement.executeUpdate(sql);
-        statement.close();
+    /**
+     * Метод записывает в лог набор сверхлимитных запросов многострочными INSERT по OVERLIMIT_BATCH_ROWS строк,
+     * то есть тысячи сверхлимитных запросов записываются несколькими обращениями к БД, а не тысячами.
+     * @param requests Сверхлимитные запросы
+     */
+    public void logOverlimitRequests(List<OverlimitBatch.Entry> requests) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            for (int from = 0; from < requests.size(); from += OVERLIMIT_BATCH_ROWS) {
+                List<OverlimitBatch.Entry> rows = requests.subList(from, Math.min(from + OVERLIMIT_BATCH_ROWS, requests.size()));
+                StringBuilder sql = new StringBuilder(String.format("INSERT INTO \"%s\".log (log_id, file_name, receipt_timestamp, status, msg_index, vs_name, keywords) VALUES ", schema));
+                for (int i = 0; i < rows.size(); i++) {
+                    sql.append(i == 0 ? "" : ", ").append("(DEFAULT, ?, DEFAULT, 'OVERLIMIT', ?, ?, ?)");
+                }
+                // Текст запроса зависит от количества строк, поэтому запрос не кэшируется и закрывается сразу
+                try (PreparedStatement statement = lease.getConnection().prepareStatement(sql.toString())) {
+                    int parameter = 1;
+                    for (OverlimitBatch.Entry row : rows) {
+                        statement.setString(parameter++, row.file.getFileName().toString());
+                        statement.setInt(parameter++, row.msgIndex);
+                        statement.setString(parameter++, row.vsName);
+                        statement.setString(parameter++, row.keywords);
+                    }
+                    statement.executeUpdate();
+                }
+            }
+        }
     }
 
     public void logRequest(String file_name,
@@ -178,112 +308,186 @@ public class ConverterDB implements AutoCloseable {
                            String keywords,
                            String documentKey) throws SQLException {
         String sql = String.format("INSERT INTO \"%s\".log (log_id, file_name, receipt_timestamp, client_id, status, timeout, msg_index, vs_name, keywords, document_key) " +
-                "VALUES (DEFAULT, '%s', DEFAULT, '%s', 'PREPARED', '%s', %d, '%s', '%s', '%s')", schema, file_name, client_id, timeout, msg_index, vs_name, keywords, documentKey);
-        Statement statement = connection.createStatement();
-        statement.executeUpdate(sql);
-        statement.close();
+                "VALUES (DEFAULT, ?, DEFAULT, ?, 'PREPARED', ?, ?, ?, ?, ?)", schema);
+        // Та же запись для COPY: log_id и receipt_timestamp заполняются значениями по умолчанию, как и в INSERT
+        String copySql = String.format("COPY \"%s\".log (file_name, client_id, status, timeout, msg_index, vs_name, keywords, document_key) FROM STDIN", schema);
+        // Отсутствующие ключевые параметры и ключ документа записываются в лог строкой 'null', как и прежде
+        String keywordsValue = String.valueOf(keywords);
+        String documentKeyValue = String.valueOf(documentKey);
+        String copyRow = LogWriter.copyField(file_name) + '\t' + LogWriter.copyField(client_id) + "\tPREPARED\t"
+                + LogWriter.copyField(timeout) + '\t' + LogWriter.copyField(msg_index) + '\t' + LogWriter.copyField(vs_name) + '\t'
+                + LogWriter.copyField(keywordsValue) + '\t' + LogWriter.copyField(documentKeyValue) + '\n';
+        write(sql, statement -> {
+            statement.setString(1, file_name);
+            statement.setString(2, client_id);
+            statement.setDate(3, timeout);
+            statement.setObject(4, msg_index, Types.INTEGER);
+            statement.setString(5, vs_name);
+            statement.setString(6, keywordsValue);
+            statement.setString(7, documentKeyValue);
+        }, copySql, copyRow, "запрос " + file_name);
     }
 
     public ResultSet getCounter(Date date) throws SQLException {
-        String sql = String.format("SELECT vs_namespace, msg_count FROM \"%s\".msg_counter WHERE session_date = '%s'", schema, date.toString());
-        Statement statement = connection.createStatement();
-        ResultSet resultSet = statement.executeQuery(sql);
-        return resultSet;
+        String sql = String.format("SELECT vs_namespace, msg_count FROM \"%s\".msg_counter WHERE session_date = ?", schema);
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            PreparedStatement statement = lease.prepare(sql);
+            statement.setDate(1, date);
+            return detach(statement);
+        }
+    }
+
+    /**
+     * Метод возвращает максимальный номер запроса каждого вида сведений, записанного в лог за указанную дату.
+     * Используется для восстановления счетчиков, если они не были сохранены перед аварийным завершением.
+     * @param date Дата, на которую актуальны счетчики
+     * @return ResultSet с наименованием вида сведений и максимальным номером запроса
+     */
+    public ResultSet getLoggedCounter(Date date) throws SQLException {
+        String sql = String.format("SELECT vs_name, MAX(msg_index) FROM \"%s\".log WHERE receipt_timestamp >= ? " +
+                "AND receipt_timestamp < CAST(? AS DATE) + 1 AND msg_index IS NOT NULL GROUP BY vs_name", schema);
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            PreparedStatement statement = lease.prepare(sql);
+            statement.setDate(1, date);
+            statement.setDate(2, date);
+            return detach(statement);
+        }
     }
 
     public void saveCounter(Map<String, Integer> counter, Date date) throws SQLException {
         String sql = String.format("INSERT INTO \"%s\".msg_counter (session_date, vs_namespace, msg_count) VALUES (?, ?, ?) ", schema);
-        sql += "ON CONFLICT (session_date, vs_namespace) DO UPDATE SET msg_count = ?";
-        PreparedStatement statement = connection.prepareStatement(sql);
-        for (Map.Entry<String, Integer> entry : counter.entrySet()) {
-            statement.setDate(1, date);
-            statement.setString(2, entry.getKey());
-            statement.setInt(3, entry.getValue());
-            statement.setInt(4, entry.getValue());
-            statement.executeUpdate();
+        // Счетчик в базе данных никогда не уменьшается: запоздавшее сохранение не перезапишет более свежее значение
+        sql += "ON CONFLICT (session_date, vs_namespace) DO UPDATE SET msg_count = GREATEST(msg_counter.msg_count, EXCLUDED.msg_count)";
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            PreparedStatement statement = lease.prepare(sql);
+            for (Map.Entry<String, Integer> entry : counter.entrySet()) {
+                statement.setDate(1, date);
+                statement.setString(2, entry.getKey());
+                statement.setInt(3, entry.getValue());
+                statement.addBatch();
+            }
+            statement.executeBatch();
         }
-        statement.close();
     }
 
     public ResultSet getRequest(String clientID) throws SQLException {
-        String sql = String.format("SELECT log_id, file_name, vs_name, status FROM \"%s\".log WHERE client_id = '%s'", schema, clientID);
-        Statement statement = connection.createStatement();
-        return statement.executeQuery(sql);
+        String sql = String.format("SELECT log_id, file_name, vs_name, status FROM \"%s\".log WHERE client_id = ?", schema);
+        ResultSet resultSet = selectRequest(sql, clientID);
+        if (writer != null && !resultSet.isBeforeFirst()) {
+            // Запись запроса может еще ждать в буфере отложенной записи: дожидаемся его и читаем еще раз
+            try {
+                writer.sync();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return resultSet;
+            }
+            resultSet.close();
+            resultSet = selectRequest(sql, clientID);
+        }
+        return resultSet;
+    }
+
+    private ResultSet selectRequest(String sql, String clientID) throws SQLException {
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            PreparedStatement statement = lease.prepare(sql);
+            statement.setString(1, clientID);
+            return detach(statement);
+        }
     }
 
     public ResultSet getRequestByMessageID(String messageID) throws SQLException {
-        String sql = String.format("SELECT client_id FROM \"%s\".log WHERE message_id = '%s'", schema, messageID);
-        Statement statement = connection.createStatement();
-        return statement.executeQuery(sql);
+        String sql = String.format("SELECT client_id FROM \"%s\".log WHERE message_id = ?", schema);
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            PreparedStatement statement = lease.prepare(sql);
+            statement.setString(1, messageID);
+            return detach(statement);
+        }
     }
 
-    public void logStatus(Long log_id, String status) throws SQLException {
+    /**
+     * Метод обновляет статус записи запроса
+     * @param log_id       Идентификатор записи лога
+     * @param status       Новый статус
+     * @param keepStatuses Статусы, которые новый статус не перезаписывает
+     */
+    public void logStatus(Long log_id, String status, String... keepStatuses) throws SQLException {
         if (log_id == null) {
             return;
         }
         // Обновляем статус существующей записи запроса
-        String sql = String.format("UPDATE \"%s\".log SET status = '%s', processing_timestamp = NOW() WHERE log_id = %d", schema, status, log_id);
-        Statement statement = connection.createStatement();
-        statement.executeUpdate(sql);
-        statement.close();
+        String sql = String.format("UPDATE \"%s\".log SET status = ?, processing_timestamp = NOW() WHERE log_id = ?", schema)
+                + keepCondition(keepStatuses);
+        write(sql, statement -> {
+            statement.setString(1, status);
+            statement.setLong(2, log_id);
+            for (int i = 0; i < keepStatuses.length; i++) {
+                statement.setString(3 + i, keepStatuses[i]);
+            }
+        }, String.format("статус %s записи %d", status, log_id));
     }
 
-    public void logError(Long log_id, String status, String err_source, String err_code, String err_description) throws SQLException {
-        // Для ответов ЕГРН необходимо сохранять предыдущее описание ошибки, потому что там может быть внутренний номер
-        // документа в ЕГРН. Поэтому сначала читаем запись log_id, определяем вид сведений и если это ЕГРН, то конкатенируем
-        // существующее описание ошибки с новым.
-        String getLogSQL = String.format("SELECT vs_name, err_description FROM \"%s\".log WHERE log_id = %d", schema, log_id);
-        Statement getLog = connection.createStatement();
-        ResultSet rs = getLog.executeQuery(getLogSQL);
-        String vsName = null;
-        String oldErrorDescription = null;
-        while (rs.next()) {
-            vsName = rs.getString(1);
-            oldErrorDescription = rs.getString(2);
-        }
-        if (vsName.equals("ЕГРН") && oldErrorDescription != null) {
-            err_description = oldErrorDescription + "; " + err_description;
+    /**
+     * Метод записывает статус и описание ошибки запроса
+     * @param log_id       Идентификатор записи лога
+     * @param status       Новый статус
+     * @param keepStatuses Статусы, которые новый статус не перезаписывает
+     */
+    public void logError(Long log_id, String status, String err_source, String err_code, String err_description, String... keepStatuses) throws SQLException {
+        if (log_id == null) {
+            return;
         }
-
+        // Для ответов ЕГРН необходимо сохранять предыдущее описание ошибки, потому что там может быть внутренний номер
+        // документа в ЕГРН. Поэтому для ЕГРН существующее описание ошибки конкатенируется с новым
+        // (в самом UPDATE, чтобы запись не требовала предварительного чтения).
         String sql = String.format("UPDATE \"%s\".log SET status = ?, err_source = ?, err_code = ?, " +
-                "err_description = ?, processing_timestamp = NOW() WHERE log_id = ?", schema);
-        PreparedStatement ps = connection.prepareStatement(sql);
-        ps.setString(1, status);
-        ps.setString(2, err_source);
-        ps.setString(3, err_code);
-        ps.setString(4, err_description);
-        ps.setLong(5, log_id);
-        ps.executeUpdate();
-        ps.close();
+                "err_description = CASE WHEN vs_name = 'ЕГРН' AND err_description IS NOT NULL THEN err_description || '; ' || ? ELSE ? END, " +
+                "processing_timestamp = NOW() WHERE log_id = ?", schema) + keepCondition(keepStatuses);
+        write(sql, statement -> {
+            statement.setString(1, status);
+            statement.setString(2, err_source);
+            statement.setString(3, err_code);
+            statement.setString(4, String.valueOf(err_description));
+            statement.setString(5, err_description);
+            statement.setLong(6, log_id);
+            for (int i = 0; i < keepStatuses.length; i++) {
+                statement.setString(7 + i, keepStatuses[i]);
+            }
+        }, String.format("статус %s записи %d", status, log_id));
     }
 
     public void fixTimeout(Date currentDate) throws SQLException {
-        String sql = String.format("UPDATE \"%s\".log SET status = 'TIMEOUT' WHERE date(timeout) <= '%s' AND status IN ('PREPARED', 'QUEUE', 'SENT')", schema, currentDate.toString());
-        Statement statement = connection.createStatement();
-        statement.executeUpdate(sql);
-        statement.close();
+        String sql = String.format("UPDATE \"%s\".log SET status = 'TIMEOUT' WHERE date(timeout) <= ? AND status IN ('PREPARED', 'QUEUE', 'SENT')", schema);
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            PreparedStatement statement = lease.prepare(sql);
+            statement.setDate(1, currentDate);
+            statement.executeUpdate();
+        }
     }
 
     public void archiveLog(String sqlDate) throws SQLException {
-        String sql = String.format("INSERT INTO \"%s\".log_archive\n" +
-                "SELECT * FROM \"%s\".log WHERE receipt_timestamp < '%s';", schema, schema, sqlDate);
-        Statement statement = connection.createStatement();
-        statement.executeUpdate(sql);
-        sql = String.format("DELETE FROM \"%s\".log WHERE receipt_timestamp < '%s';", schema, sqlDate);
-        statement.executeUpdate(sql);
-        sql = String.format("REFRESH MATERIALIZED VIEW \"%s\".full_log;", schema);
-        statement.executeUpdate(sql);
-        statement.close();
+        // Архивирование выполняется раз в сутки, поэтому его запросы не кэшируются
+        try (ConnectionPool.Lease lease = pool.lease();
+             Statement statement = lease.createStatement()) {
+            String sql = String.format("INSERT INTO \"%s\".log_archive\n" +
+                    "SELECT * FROM \"%s\".log WHERE receipt_timestamp < '%s';", schema, schema, sqlDate);
+            statement.executeUpdate(sql);
+            sql = String.format("DELETE FROM \"%s\".log WHERE receipt_timestamp < '%s';", schema, sqlDate);
+            statement.executeUpdate(sql);
+            sql = String.format("REFRESH MATERIALIZED VIEW \"%s\".full_log;", schema);
+            statement.executeUpdate(sql);
+        }
     }
 
     public String getFSSPRequestFileName(String docKey) {
-        String sql = String.format("SELECT file_name FROM \"%s\".log WHERE document_key = '%s';", schema, docKey);
-        try {
-            Statement statement = connection.createStatement();
-            ResultSet rs = statement.executeQuery(sql);
-            while (rs.next()) {
-                return rs.getString("file_name");
-            };
+        String sql = String.format("SELECT file_name FROM \"%s\".log WHERE document_key = ?;", schema);
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            PreparedStatement statement = lease.prepare(sql);
+            statement.setString(1, docKey);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    return rs.getString("file_name");
+                }
+            }
             LOG.error(String.format("Не удалось найти входящий запрос ФССП для идентификатора документа %s", docKey));
             return null;
         } catch (SQLException e) {
@@ -294,16 +498,39 @@ public class ConverterDB implements AutoCloseable {
     }
 
     public Long getFSSPRequestLogId(String docKey) {
-        String sql = String.format("SELECT log_id FROM \"%s\".log WHERE document_key = '%s';", schema, docKey);
-        try {
-            Statement statement = connection.createStatement();
-            ResultSet rs = statement.executeQuery(sql);
-            rs.next();
-            return rs.getLong("log_id");
+        String sql = String.format("SELECT log_id FROM \"%s\".log WHERE document_key = ?;", schema);
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            PreparedStatement statement = lease.prepare(sql);
+            statement.setString(1, docKey);
+            try (ResultSet rs = statement.executeQuery()) {
+                rs.next();
+                return rs.getLong("log_id");
+            }
         } catch (SQLException e) {
             LOG.error(String.format("Не удалось найти входящий запрос ФССП для идентификатора документа %s", docKey));
             LOG.error(e.getMessage());
             return null;
         }
     }
+
+    /**
+     * Метод выполняет запрос и копирует результат в отсоединенный ResultSet (CachedRowSet),
+     * чтобы соединение вернулось в пул сразу, а вызывающий метод мог читать и закрывать результат, как прежде.
+     * @param statement Подготовленный запрос с установленными параметрами
+     * @return Отсоединенный от соединения ResultSet
+     */
+    private static ResultSet detach(PreparedStatement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            CachedRowSet rowSet = getRowSetFactory().createCachedRowSet();
+            rowSet.populate(resultSet);
+            return rowSet;
+        }
+    }
+
+    private static synchronized RowSetFactory getRowSetFactory() throws SQLException {
+        if (rowSetFactory == null) {
+            rowSetFactory = RowSetProvider.newFactory();
+        }
+        return rowSetFactory;
+    }
 }
@@ -0,0 +1,338 @@
+package ru.hemulen.converter.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.postgresql.PGConnection;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поток отложенной записи в лог конвертера (write-behind).
+ * <p>
+ * Обработчики запросов и ответов не ждут ответа PostgreSQL на каждую запись лога: ConverterDB ставит запись
+ * в ограниченный буфер и сразу возвращает управление. Поток забирает из буфера все накопившиеся записи
+ * (ожидая не дольше LOG_FLUSH_INTERVAL после первой) и выполняет их одной транзакцией: подряд идущие записи
+ * с одинаковым SQL отправляются одним пакетом JDBC, поэтому порядок записей сохраняется.
+ * Если буфер заполнен, вызывающий поток ждет, то есть записи не теряются, а обработка замедляется до темпа базы.
+ * <p>
+ * Записи, для которых задано представление строки COPY (запись запроса в лог), при наплыве запросов выполняются
+ * не пакетом INSERT, а потоком COPY FROM STDIN: если подряд идущих таких записей не меньше LOG_COPY_THRESHOLD,
+ * они передаются базе одной командой COPY без разбора и планирования каждого INSERT.
+ * <p>
+ * Если транзакция не удалась, записи повторяются по одной, и в лог приложения попадают только ошибочные.
+ */
+public class LogWriter extends Thread {
+    private static final Logger LOG = LoggerFactory.getLogger(LogWriter.class.getName());
+    private final ConnectionPool pool;
+    private final BlockingQueue<Event> buffer;  // Записи, ожидающие выполнения
+    private final long flushInterval;           // Максимальное время накопления записей после первой (мс)
+    private final int batchSize;                // Максимальное количество записей в одной транзакции
+    private final int copyThreshold;            // Количество подряд идущих записей, начиная с которого используется COPY
+    private volatile boolean isRunnable = true;
+
+    /**
+     * @param pool          Пул соединений с базой конвертера
+     * @param capacity      Емкость буфера записей
+     * @param flushInterval Максимальное время накопления записей (мс)
+     * @param batchSize     Максимальное количество записей в одной транзакции
+     * @param copyThreshold Количество подряд идущих записей, начиная с которого используется COPY (0 - COPY не используется)
+     */
+    public LogWriter(ConnectionPool pool, int capacity, long flushInterval, int batchSize, int copyThreshold) {
+        setName("LogWriterThread");
+        setDaemon(true);
+        this.pool = pool;
+        this.buffer = new ArrayBlockingQueue<>(Math.max(capacity, 1));
+        this.flushInterval = Math.max(flushInterval, 0);
+        this.batchSize = Math.max(batchSize, 1);
+        this.copyThreshold = copyThreshold > 0 ? copyThreshold : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Метод ставит запись в буфер. Если буфер заполнен, то ждет, пока поток записи его разгрузит.
+     *
+     * @param sql     Текст запроса
+     * @param binder  Установка параметров запроса
+     * @param comment Описание записи для лога приложения на случай ошибки
+     */
+    public void write(String sql, Binder binder, String comment) {
+        write(sql, binder, null, null, comment);
+    }
+
+    /**
+     * Метод ставит в буфер запись, которую при наплыве можно выполнить командой COPY
+     *
+     * @param sql     Текст запроса
+     * @param binder  Установка параметров запроса
+     * @param copySql Команда COPY ... FROM STDIN, равнозначная запросу
+     * @param copyRow Строка данных COPY в текстовом формате (с завершающим переводом строки), см. copyField
+     * @param comment Описание записи для лога приложения на случай ошибки
+     */
+    public void write(String sql, Binder binder, String copySql, String copyRow, String comment) {
+        Event event = new Event(sql, binder, copySql, copyRow, comment);
+        try {
+            buffer.put(event);
+        } catch (InterruptedException e) {
+            // Запись не должна потеряться, поэтому выполняется синхронно
+            Thread.currentThread().interrupt();
+            flush(Collections.singletonList(event));
+        }
+    }
+
+    /**
+     * Метод ждет, пока будут выполнены все записи, поставленные в буфер до его вызова
+     */
+    public void sync() throws InterruptedException {
+        if (!isAlive()) {
+            return;
+        }
+        Event barrier = new Event(null, null, null, null, null);
+        buffer.put(barrier);
+        barrier.done.await();
+    }
+
+    public void run() {
+        List<Event> batch = new ArrayList<>();
+        while (isRunnable || !buffer.isEmpty()) {
+            try {
+                Event first = buffer.poll(1000, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Накапливаем записи, пришедшие за интервал, чтобы выполнить их одной транзакцией
+                long deadline = System.currentTimeMillis() + flushInterval;
+                while (batch.size() < batchSize) {
+                    buffer.drainTo(batch, batchSize - batch.size());
+                    long wait = deadline - System.currentTimeMillis();
+                    if (batch.size() >= batchSize || wait <= 0) {
+                        break;
+                    }
+                    Event next = buffer.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                isRunnable = false;
+                buffer.drainTo(batch);
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    flush(batch);
+                } catch (RuntimeException e) {
+                    // Ошибка в одной записи не должна останавливать поток записи
+                    LOG.error(String.format("Не удалось записать в лог пакет из %d записей.", batch.size()));
+                    LOG.error(e.toString());
+                }
+                for (Event event : batch) {
+                    event.done.countDown();
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Метод останавливает поток, дождавшись записи всего буфера
+     */
+    public void shutdown() {
+        isRunnable = false;
+        try {
+            join();
+        } catch (InterruptedException e) {
+            LOG.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Метод выполняет записи одной транзакцией, а если она не удалась - по одной
+     */
+    private void flush(List<Event> batch) {
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            Connection connection = lease.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                execute(lease, batch);
+                connection.commit();
+                return;
+            } catch (SQLException e) {
+                LOG.error(String.format("Не удалось записать в лог пакет из %d записей, записи повторяются по одной.", batch.size()));
+                LOG.error(e.getMessage());
+                rollback(connection);
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    LOG.error(e.getMessage());
+                }
+            }
+        } catch (SQLException e) {
+            LOG.error(String.format("Не удалось получить соединение для записи пакета из %d записей, записи повторяются по одной.", batch.size()));
+            LOG.error(e.getMessage());
+        }
+        // Записи лога нужны для восстановления счетчиков VSCounter, поэтому пакет не отбрасывается, а повторяется по одной
+        replay(batch);
+    }
+
+    /**
+     * Метод откатывает транзакцию. Если откат не удался, то соединение закрывается, чтобы пул его не выдал повторно.
+     */
+    private void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            LOG.error(e.getMessage());
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                LOG.error(ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Метод выполняет записи по одной на новом соединении, и в лог приложения попадают только ошибочные
+     */
+    private void replay(List<Event> batch) {
+        try (ConnectionPool.Lease lease = pool.lease()) {
+            for (Event event : batch) {
+                if (event.sql == null) {
+                    continue;
+                }
+                try {
+                    PreparedStatement statement = lease.prepare(event.sql);
+                    // Пакет, не выполненный из-за ошибки, остается в кэшированном запросе и не должен повториться
+                    statement.clearBatch();
+                    event.binder.bind(statement);
+                    statement.executeUpdate();
+                } catch (SQLException e) {
+                    LOG.error(String.format("Не удалось записать в лог: %s", event.comment));
+                    LOG.error(e.getMessage());
+                }
+            }
+        } catch (SQLException e) {
+            LOG.error(String.format("Не удалось получить соединение для записи %d записей лога.", batch.size()));
+            LOG.error(e.getMessage());
+            for (Event event : batch) {
+                if (event.sql != null) {
+                    LOG.error(String.format("Не удалось записать в лог: %s", event.comment));
+                }
+            }
+        }
+    }
+
+    /**
+     * Метод выполняет записи по порядку, объединяя подряд идущие записи с одинаковым SQL в один пакет
+     * (или в одну команду COPY, если таких записей не меньше copyThreshold)
+     */
+    private void execute(ConnectionPool.Lease lease, List<Event> batch) throws SQLException {
+        int from = 0;
+        while (from < batch.size()) {
+            String sql = batch.get(from).sql;
+            int to = from + 1;
+            while (to < batch.size() && (sql == null ? batch.get(to).sql == null : sql.equals(batch.get(to).sql))) {
+                to++;
+            }
+            if (sql != null) {
+                List<Event> run = batch.subList(from, to);
+                if (run.size() >= copyThreshold && run.get(0).copySql != null) {
+                    copy(lease, run);
+                } else {
+                    PreparedStatement statement = lease.prepare(sql);
+                    for (Event event : run) {
+                        event.binder.bind(statement);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            from = to;
+        }
+    }
+
+    /**
+     * Метод передает строки записей базе одной командой COPY FROM STDIN
+     */
+    private void copy(ConnectionPool.Lease lease, List<Event> run) throws SQLException {
+        StringBuilder data = new StringBuilder();
+        for (Event event : run) {
+            data.append(event.copyRow);
+        }
+        try {
+            lease.getConnection().unwrap(PGConnection.class).getCopyAPI().copyIn(run.get(0).copySql, new StringReader(data.toString()));
+        } catch (IOException e) {
+            throw new SQLException("Не удалось передать строки командой COPY.", e);
+        }
+    }
+
+    /**
+     * Метод возвращает значение поля строки COPY в текстовом формате: NULL - \N, спецсимволы экранируются
+     *
+     * @param value Значение поля
+     * @return Значение, готовое к вставке в строку COPY
+     */
+    public static String copyField(Object value) {
+        if (value == null) {
+            return "\\N";
+        }
+        String text = value.toString();
+        StringBuilder field = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                    field.append("\\\\");
+                    break;
+                case '\t':
+                    field.append("\\t");
+                    break;
+                case '\n':
+                    field.append("\\n");
+                    break;
+                case '\r':
+                    field.append("\\r");
+                    break;
+                default:
+                    field.append(c);
+            }
+        }
+        return field.toString();
+    }
+
+    /**
+     * Установка параметров подготовленного запроса записи
+     */
+    public interface Binder {
+        void bind(PreparedStatement statement) throws SQLException;
+    }
+
+    private static class Event {
+        private final String sql;
+        private final Binder binder;
+        private final String copySql;   // Команда COPY, равнозначная запросу, или null
+        private final String copyRow;   // Строка данных COPY
+        private final String comment;
+        private final CountDownLatch done = new CountDownLatch(1);  // Признак выполнения (ожидается методом sync)
+
+        private Event(String sql, Binder binder, String copySql, String copyRow, String comment) {
+            this.sql = sql;
+            this.binder = binder;
+            this.copySql = copySql;
+            this.copyRow = copyRow;
+            this.comment = comment;
+        }
+    }
+}
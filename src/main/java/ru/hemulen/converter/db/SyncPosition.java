@@ -0,0 +1,99 @@
+package ru.hemulen.converter.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Позиция синхронизации лога конвертера с базой одного instance адаптера: штамп времени и идентификатор
+ * последней прочитанной записи (keyset). Внутри прохода следующая страница начинается строго после этой пары,
+ * поэтому страницы не пересекаются, а записи с одинаковым штампом времени не теряются.
+ * <p>
+ * Адаптер может зафиксировать запись позже, чем записи с большим штампом времени (штамп ставится до фиксации
+ * транзакции). Такая запись оказалась бы позади позиции и была бы пропущена навсегда, поэтому каждый проход
+ * начинается с отступом lookback назад от самого позднего прочитанного штампа времени с условием >=:
+ * записи окна читаются повторно, а их повторное обновление в логе ничего не меняет.
+ * Сохраняемый в базе штамп времени (getTimestamp) при этом не отступает назад.
+ */
+public class SyncPosition {
+    private final long lookback;    // Отступ начала прохода назад от самого позднего штампа времени (мс)
+    private Timestamp timestamp;    // Самый поздний штамп времени прочитанных записей
+    private Timestamp scanTimestamp;    // Штамп времени последней прочитанной записи текущего прохода
+    private String scanId;          // Идентификатор последней прочитанной записи текущего прохода или null в начале прохода
+
+    /**
+     * @param timestamp Сохраненный штамп времени синхронизации
+     * @param lookback  Отступ начала каждого прохода назад (мс)
+     */
+    public SyncPosition(Timestamp timestamp, long lookback) {
+        this.timestamp = timestamp;
+        this.lookback = Math.max(lookback, 0);
+        this.scanTimestamp = timestamp;
+    }
+
+    /**
+     * Метод возвращает самый поздний штамп времени прочитанных записей (для сохранения в базе конвертера)
+     */
+    public Timestamp getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Метод начинает новый проход: позиция отступает на lookback назад от самого позднего штампа времени
+     */
+    public void startPass() {
+        scanTimestamp = lookback == 0 ? timestamp : new Timestamp(timestamp.getTime() - lookback);
+        scanId = null;
+    }
+
+    /**
+     * Метод возвращает условие выборки записей после позиции
+     *
+     * @param timestampColumn Столбец штампа времени
+     * @param idColumn        Столбец идентификатора записи
+     * @return Условие с параметрами, которые устанавливает метод bind
+     */
+    String condition(String timestampColumn, String idColumn) {
+        if (scanId == null) {
+            return timestampColumn + " >= ?";
+        }
+        return String.format("(%1$s > ? OR (%1$s = ? AND %2$s > ?))", timestampColumn, idColumn);
+    }
+
+    /**
+     * Метод устанавливает параметры условия condition
+     *
+     * @param statement Запрос
+     * @param index     Номер первого параметра условия
+     * @return Номер следующего параметра запроса
+     */
+    int bind(PreparedStatement statement, int index) throws SQLException {
+        statement.setTimestamp(index++, scanTimestamp);
+        if (scanId != null) {
+            statement.setTimestamp(index++, scanTimestamp);
+            // Тип идентификатора определяет сервер: в базе адаптера он может быть не строковым
+            statement.setObject(index++, scanId, Types.OTHER);
+        }
+        return index;
+    }
+
+    /**
+     * Метод переносит позицию на обработанную запись
+     */
+    void advance(Timestamp timestamp, String id) {
+        scanTimestamp = timestamp;
+        scanId = id;
+        if (!timestamp.before(this.timestamp)) {
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Источник страниц записей базы адаптера (AdapterDB или Adapter13DB)
+     */
+    public interface PageSource {
+        ResultSet getPage(SyncPosition position, int pageSize) throws SQLException;
+    }
+}
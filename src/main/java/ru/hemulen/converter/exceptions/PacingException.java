@@ -0,0 +1,8 @@
+package ru.hemulen.converter.exceptions;
+
+public class PacingException extends Exception {
+    private final long delay;   // Время (мс), через которое запрос можно будет отправить
+    public PacingException(String message, long delay) {super(message); this.delay = delay;}
+
+    public long getDelay() {return delay;}
+}
@@ -0,0 +1,290 @@
+package ru.hemulen.converter.messages;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Класс извлекает из запроса ключевые параметры вида сведений по XPath-выражениям из VSInfoArray.xml.
+ * Выражения проверяются один раз при загрузке описания вида сведений, а затем компилируются не чаще
+ * одного раза на поток: скомпилированные XPathExpression не потокобезопасны, поэтому каждый поток
+ * получает собственный набор. Сам объект неизменяем и может использоваться всеми потоками без блокировок.
+ * <p>
+ * Почти все выражения имеют вид /*[local-name()="X"]/*[local-name()="Y"]/text() (или .../@attr).
+ * Такие выражения вычисляются без DOM и без XPath: все выражения вида сведений проверяются за один
+ * потоковый проход по файлу запроса (StAX). Остальные выражения вычисляются обычным XPath над DOM.
+ */
+public class KeywordExtractor {
+    // Шаг пути вида /*[local-name()="X"] (кавычки любые)
+    private static final Pattern STEP = Pattern.compile("/\\*\\[local-name\\(\\)\\s*=\\s*(?:\"([^\"]+)\"|'([^']+)')\\]");
+    // Завершение пути: /text() или /@attr (атрибут без префикса пространства имен)
+    private static final Pattern TAIL = Pattern.compile("/(?:(text\\(\\))|@([^/\\[\\]()@:\\s]+))");
+    private static final ThreadLocal<XMLInputFactory> inputFactory = ThreadLocal.withInitial(XMLInputFactory::newInstance);
+
+    private final String[] expressions;     // XPath-выражения ключевых параметров
+    private final SimplePath[] paths;       // Разобранные выражения (null для выражений, которые вычисляются через XPath)
+    private final ThreadLocal<XPathExpression[]> compiled;  // Скомпилированные выражения текущего потока
+
+    /**
+     * Конструктор компилирует выражения, чтобы ошибка в описании вида сведений обнаружилась при загрузке
+     *
+     * @param expressions XPath-выражения ключевых параметров
+     * @throws XPathExpressionException одно из выражений некорректно
+     */
+    public KeywordExtractor(String[] expressions) throws XPathExpressionException {
+        this.expressions = expressions.clone();
+        XPathExpression[] initial = compile(this.expressions);
+        compiled = new ThreadLocal<>();
+        compiled.set(initial);
+        paths = new SimplePath[this.expressions.length];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = SimplePath.parse(this.expressions[i].trim());
+        }
+    }
+
+    /**
+     * Метод выполняет над DOM-объектом все XPath-выражения и формирует из их результатов строку через пробел
+     *
+     * @param dom DOM-объект запроса
+     * @return Ключевые параметры запроса
+     * @throws XPathExpressionException ошибка выполнения XPath-выражения
+     */
+    public String extract(Document dom) throws XPathExpressionException {
+        StringBuilder keywords = new StringBuilder();
+        XPathExpression[] threadExpressions = getCompiled();
+        for (XPathExpression expression : threadExpressions) {
+            appendXPath(keywords, expression, dom);
+        }
+        return keywords.toString().trim();
+    }
+
+    /**
+     * Метод извлекает ключевые параметры из файла запроса. Простые выражения вычисляются за один потоковый
+     * проход по файлу, остальные - через XPath над DOM-объектом.
+     *
+     * Если DOM-объект запроса уже построен, используйте extract(Document): повторно читать файл не нужно.
+     *
+     * @param file Файл запроса
+     * @return Ключевые параметры запроса
+     * @throws IOException              ошибка чтения файла
+     * @throws XMLStreamException       ошибка потокового разбора XML
+     * @throws SAXException             ошибка разбора XML в DOM
+     * @throws XPathExpressionException ошибка выполнения XPath-выражения
+     */
+    public String extract(File file) throws IOException, XMLStreamException, SAXException, XPathExpressionException {
+        List<List<String>> values = stream(file);
+        Document dom = null;    // Строится только при наличии сложных выражений
+        XPathExpression[] threadExpressions = null;
+        StringBuilder keywords = new StringBuilder();
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i] != null) {
+                for (String value : values.get(i)) {
+                    keywords.append(value).append(' ');
+                }
+                continue;
+            }
+            // Выражение не поддерживается потоковым разбором - вычисляем его обычным XPath
+            if (dom == null) {
+                dom = XMLTransformer.fileToDocument(file);
+            }
+            if (threadExpressions == null) {
+                threadExpressions = getCompiled();
+            }
+            appendXPath(keywords, threadExpressions[i], dom);
+        }
+        return keywords.toString().trim();
+    }
+
+    /**
+     * Метод за один проход по файлу собирает значения всех простых выражений в порядке документа
+     */
+    private List<List<String>> stream(File file) throws IOException, XMLStreamException {
+        List<List<String>> values = new ArrayList<>(paths.length);
+        List<Integer> rootCandidates = new ArrayList<>(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            values.add(new ArrayList<>());
+            if (paths[i] != null) {
+                rootCandidates.add(i);
+            }
+        }
+        if (rootCandidates.isEmpty()) {
+            return values;
+        }
+        // Для каждого открытого элемента храним выражения, путь которых совпадает с цепочкой предков
+        Deque<int[]> candidates = new ArrayDeque<>();
+        // И выражения, для которых собирается текст непосредственно этого элемента
+        Deque<int[]> textTargets = new ArrayDeque<>();
+        int[] none = new int[0];
+        int[] root = new int[rootCandidates.size()];
+        for (int i = 0; i < root.length; i++) {
+            root[i] = rootCandidates.get(i);
+        }
+        StringBuilder text = new StringBuilder();
+        try (InputStream inputStream = new FileInputStream(file)) {
+            XMLStreamReader reader = inputFactory.get().createXMLStreamReader(inputStream);
+            try {
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    switch (event) {
+                        case XMLStreamConstants.START_ELEMENT: {
+                            flushText(text, textTargets, values);
+                            int depth = candidates.size() + 1;
+                            int[] parent = candidates.isEmpty() ? root : candidates.peek();
+                            String localName = reader.getLocalName();
+                            int[] matched = new int[parent.length];
+                            int matchedCount = 0;
+                            int[] targets = new int[parent.length];
+                            int targetCount = 0;
+                            for (int index : parent) {
+                                SimplePath path = paths[index];
+                                if (path.steps.length < depth || !path.steps[depth - 1].equals(localName)) {
+                                    continue;
+                                }
+                                if (path.steps.length > depth) {
+                                    matched[matchedCount++] = index;
+                                } else if (path.attribute == null) {
+                                    targets[targetCount++] = index;
+                                } else {
+                                    for (int a = 0; a < reader.getAttributeCount(); a++) {
+                                        String namespace = reader.getAttributeNamespace(a);
+                                        if ((namespace == null || namespace.isEmpty()) && path.attribute.equals(reader.getAttributeLocalName(a))) {
+                                            values.get(index).add(reader.getAttributeValue(a));
+                                        }
+                                    }
+                                }
+                            }
+                            candidates.push(matchedCount == 0 ? none : trim(matched, matchedCount));
+                            textTargets.push(targetCount == 0 ? none : trim(targets, targetCount));
+                            break;
+                        }
+                        case XMLStreamConstants.END_ELEMENT:
+                            flushText(text, textTargets, values);
+                            candidates.pop();
+                            textTargets.pop();
+                            if (candidates.isEmpty()) {
+                                // Корневой элемент закрыт - дальше ключевых параметров нет
+                                return values;
+                            }
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                        case XMLStreamConstants.SPACE:
+                            if (!textTargets.isEmpty() && textTargets.peek().length != 0) {
+                                text.append(reader.getText());
+                            }
+                            break;
+                        case XMLStreamConstants.COMMENT:
+                        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                            // Комментарий разделяет текстовые узлы элемента
+                            flushText(text, textTargets, values);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return values;
+    }
+
+    private static void flushText(StringBuilder text, Deque<int[]> textTargets, List<List<String>> values) {
+        if (text.length() == 0) {
+            return;
+        }
+        for (int index : textTargets.peek()) {
+            values.get(index).add(text.toString());
+        }
+        text.setLength(0);
+    }
+
+    private static int[] trim(int[] array, int length) {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, length);
+        return result;
+    }
+
+    private XPathExpression[] getCompiled() throws XPathExpressionException {
+        XPathExpression[] threadExpressions = compiled.get();
+        if (threadExpressions == null) {
+            threadExpressions = compile(expressions);
+            compiled.set(threadExpressions);
+        }
+        return threadExpressions;
+    }
+
+    private static void appendXPath(StringBuilder keywords, XPathExpression expression, Document dom) throws XPathExpressionException {
+        NodeList nodeList = (NodeList) expression.evaluate(dom, XPathConstants.NODESET);
+        for (int i = 0; i < nodeList.getLength(); i++) {
+            keywords.append(nodeList.item(i).getTextContent()).append(' ');
+        }
+    }
+
+    private static XPathExpression[] compile(String[] expressions) throws XPathExpressionException {
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        XPathExpression[] result = new XPathExpression[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            result[i] = xpath.compile(expressions[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Абсолютный путь из шагов по local-name(), заканчивающийся текстом или атрибутом элемента
+     */
+    private static class SimplePath {
+        private final String[] steps;       // Локальные имена элементов от корня
+        private final String attribute;     // Имя атрибута или null, если извлекается текст
+
+        private SimplePath(String[] steps, String attribute) {
+            this.steps = steps;
+            this.attribute = attribute;
+        }
+
+        /**
+         * Метод разбирает выражение, если оно имеет поддерживаемый вид
+         *
+         * @param expression XPath-выражение
+         * @return Разобранный путь или null, если выражение нужно вычислять через XPath
+         */
+        private static SimplePath parse(String expression) {
+            List<String> steps = new ArrayList<>();
+            Matcher step = STEP.matcher(expression);
+            int position = 0;
+            while (step.find(position) && step.start() == position) {
+                steps.add(step.group(1) != null ? step.group(1) : step.group(2));
+                position = step.end();
+            }
+            if (steps.isEmpty()) {
+                return null;
+            }
+            Matcher tail = TAIL.matcher(expression);
+            tail.region(position, expression.length());
+            if (!tail.matches()) {
+                return null;
+            }
+            return new SimplePath(steps.toArray(new String[0]), tail.group(1) != null ? null : tail.group(2));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ru.hemulen.converter.messages;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Класс накапливает сверхлимитные запросы, обнаруженные рабочими потоками RequestProcessor за один проход по каталогу.
+ * Вместо отдельного INSERT и отдельного перемещения каждого файла RequestProcessor после прохода
+ * забирает весь накопленный набор, записывает его в лог одним пакетным запросом и переносит файлы в каталог overlimit.
+ * Запросы добавляются без блокировок, поэтому класс может использоваться несколькими рабочими потоками.
+ */
+public class OverlimitBatch {
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Метод добавляет сверхлимитный запрос в набор
+     *
+     * @param file     Файл запроса в каталоге requests
+     * @param vsInfo   Параметры вида сведений
+     * @param msgIndex Порядковый номер запроса вида сведений за сутки
+     * @param keywords Ключевые параметры запроса
+     */
+    public void add(Path file, VSInfo vsInfo, Integer msgIndex, String keywords) {
+        entries.add(new Entry(file, vsInfo.namespace, vsInfo.name, msgIndex, keywords));
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Метод забирает все накопленные запросы, оставляя набор пустым
+     *
+     * @return Сверхлимитные запросы в порядке добавления
+     */
+    public List<Entry> drain() {
+        List<Entry> result = new ArrayList<>();
+        Entry entry;
+        while ((entry = entries.poll()) != null) {
+            result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * Сверхлимитный запрос, ожидающий записи в лог и перемещения в каталог overlimit
+     */
+    public static class Entry {
+        public final Path file;         // Файл запроса
+        public final String namespace;  // Пространство имен вида сведений
+        public final String vsName;     // Наименование вида сведений
+        public final Integer msgIndex;  // Порядковый номер запроса вида сведений за сутки
+        public final String keywords;   // Ключевые параметры запроса
+
+        private Entry(Path file, String namespace, String vsName, Integer msgIndex, String keywords) {
+            this.file = file;
+            this.namespace = namespace;
+            this.vsName = vsName;
+            this.msgIndex = msgIndex;
+            this.keywords = keywords;
+        }
+    }
+}
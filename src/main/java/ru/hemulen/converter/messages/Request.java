@@ -7,13 +7,16 @@ import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 import ru.hemulen.crypto.exceptions.SignatureProcessingException;
 import ru.hemulen.converter.exceptions.OverlimitException;
+import ru.hemulen.converter.exceptions.PacingException;
 import ru.hemulen.converter.exceptions.ParsingException;
 import ru.hemulen.converter.exceptions.RequestException;
 import ru.hemulen.converter.exceptions.SignException;
 import ru.hemulen.converter.thread.RequestProcessor;
+import ru.hemulen.converter.thread.RequestSender;
 import ru.hemulen.converter.utils.AbstractTools;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.*;
@@ -52,45 +55,69 @@ public class Request {
      * @param requestFile Файл с исходным запросом
      * @throws RequestException   Исключение выбрасывается, если проблемы при преобразовании
      * @throws OverlimitException Исключение выбрасывается, если за текущие суткиотправлено слишком многозапросов этого ВС
+     * @throws PacingException    Исключение выбрасывается, если запрос должен подождать, чтобы не превысить темп отправки ВС
+     *                            или не переполнить очередь отправки
      */
-    public Request(File requestFile) throws RequestException, OverlimitException, ParsingException {
+    public Request(File requestFile) throws RequestException, OverlimitException, ParsingException, PacingException {
+        this(requestFile, readVSInfo(requestFile));
+    }
+
+    /**
+     * Конструктор запроса, вид сведений которого уже известен (например, сверхлимитного запроса из очереди overlimit)
+     *
+     * @param requestFile Файл с исходным запросом
+     * @param vsInfo      Параметры вида сведений запроса
+     */
+    public Request(File requestFile, VSInfo vsInfo) throws RequestException, OverlimitException, ParsingException, PacingException {
         this.requestFile = requestFile;
+        this.vsInfo = vsInfo;
+        // Запрос, дождавшийся своего времени, убирается из очереди ожидания
+        boolean waited = RequestProcessor.waitingQueue.take(requestFile.toPath());
+        // Если для вида сведений задан темп отправки, то запрос получает разрешение на отправку (один раз, даже если ждет).
+        // Когда суточный лимит исчерпан, разрешение не нужно - запрос все равно станет сверхлимитным.
+        if (vsInfo.pacing != null && !waited
+                && RequestProcessor.vsCounter.get(vsInfo.namespace) < vsInfo.dailyLimit) {
+            long delay = vsInfo.pacing.reserve();
+            if (delay > 0) {
+                throw new PacingException(String.format("Запрос %s вида сведений %s отложен на %d мс.", requestFile.getName(), vsInfo.name, delay), delay);
+            }
+        }
+        // Если адаптер не успевает забирать подготовленные запросы, то запрос не подписывается и не расходует лимит,
+        // а ждет в каталоге, пока очередь отправки не уменьшится (см. Backpressure).
+        // Проверка идет после темпа отправки: уже полученное разрешение сохраняется, пока запрос ждет в очереди.
+        // Запросы, которые отправляются во второй instance адаптера, не ждут: они не проходят через очередь отправки.
+        if (RequestProcessor.backpressure != null && usesSendQueue(vsInfo) && RequestProcessor.vsCounter.get(vsInfo.namespace) < vsInfo.dailyLimit) {
+            long delay = RequestProcessor.backpressure.getDelay(Integer.parseInt(vsInfo.priority), RequestProcessor.preparedQueue.size());
+            if (delay > 0) {
+                throw new PacingException(String.format("Запрос %s вида сведений %s отложен на %d мс: адаптер не успевает забирать запросы.", requestFile.getName(), vsInfo.name, delay), delay);
+            }
+        }
+        // Резервируем порядковый номер запроса вида сведений за текущие сутки
+        requestIndex = RequestProcessor.vsCounter.reserve(vsInfo.namespace);
+        if (requestIndex > vsInfo.dailyLimit) {
+            // Сверхлимитный запрос в DOM не разбирается: ключевые параметры для лога извлекаются потоковым проходом
+            keywords = extractKeywords(null);
+            // Сверхлимитный запрос ставится в набор, который RequestProcessor после прохода по каталогу
+            // записывает в лог одним пакетным запросом и переносит в очередь вида сведений в каталоге overlimit
+            RequestProcessor.overlimitBatch.add(requestFile.toPath(), vsInfo, requestIndex, keywords);
+            RequestProcessor.vsCounter.commit(vsInfo.namespace);
+            // И выбрасываем исключение OverlimitException, чтобы перенести запрос в каталог overlimited и больше не обрабатывать сегодня
+            throw new OverlimitException("Превышен дневной лимит " + vsInfo.name, new Exception());
+        }
         // Парсим XML-файл в DOM-объект
         try {
             requestDOM = XMLTransformer.fileToDocument(requestFile);
         } catch (IOException e) {
             LOG.error(e.getMessage());
+            releaseIndex();
             throw new RequestException(String.format("Файловая ошибка с %s", requestFile.getName()), e);
         } catch (SAXException e) {
             LOG.error(e.getMessage());
+            releaseIndex();
             throw new ParsingException(String.format("Ошибка парсинга файла %s.", requestFile.getName()), e);
         }
-        // Определяем вид сведений
-        vsInfo = getVSInfo(requestDOM);
-        if (vsInfo == null) {
-            throw new RequestException(String.format("Неизвестный вид сведений в файле %s", requestFile), new Exception());
-        }
         // Извлекаем ключевые параметры запроса
-        try {
-            keywords = XMLTransformer.getKeywords(requestDOM, vsInfo);
-        } catch (XPathExpressionException e) {
-            LOG.error(e.getMessage());
-            // Продолжаем обработку запроса, но без ключевых слов
-            keywords = "";
-        }
-        // Определяем порядковый номер запроса вида сведений за текущие сутки
-        requestIndex = RequestProcessor.vsCounter.getIndex(vsInfo.namespace);
-        if (requestIndex > vsInfo.dailyLimit) {
-            // Фиксируем попытку отправки сверхлимитного запроса в БД
-            try {
-                RequestProcessor.dbConnection.logOverlimitRequest(requestFile.getName(), vsInfo.name, requestIndex, keywords);
-            } catch (SQLException e) {
-                LOG.error(e.getSQLState());
-                throw new RequestException("Ошибка при обработке сверхлимитного запроса " + requestFile.getName(), new Exception());
-            }
-            // И выбрасываем исключение OverlimitException, чтобы перенести запрос в каталог overlimited и больше не обрабатывать сегодня
-            throw new OverlimitException("Превышен дневной лимит " + vsInfo.name, new Exception());
-        }
+        keywords = extractKeywords(requestDOM);
         // Если запрос не сверхлимитный, то рассчитываем крайнюю дату, когда должен быть получен ответ
         timeoutDate = (Calendar) RequestProcessor.currentDate.clone();
         timeoutDate.add(Calendar.DATE, vsInfo.timeout);
@@ -100,6 +127,17 @@ public class Request {
 
     }
 
+    /**
+     * Метод определяет, попадает ли запрос вида сведений в очередь отправки (каталог prepared).
+     * Запросы ЕСИА и ЕРН помещаются сразу в каталог второго instance адаптера (см. generateESIARequest и processTo13).
+     *
+     * @param vsInfo Параметры вида сведений
+     * @return true, если запрос отправляется через очередь отправки RequestSender
+     */
+    private static boolean usesSendQueue(VSInfo vsInfo) {
+        return !"Персональные данные пользователя ЕСИА".equals(vsInfo.name) && !"ЕРН".equals(vsInfo.name);
+    }
+
     public String getVSName() {
         if (vsInfo == null) {
             return "Unknown";
@@ -108,22 +146,12 @@ public class Request {
     }
 
     /**
-     * Метод преобразует запрос в формат ClientMessage его в каталог с соответствующим приоритетом
+     * Метод преобразует запрос в формат ClientMessage, сохраняет его в каталог prepared
+     * и ставит в очередь отправки с приоритетом вида сведений
      */
     public void process() throws RequestException {
-        // Определяем каталог для сохранения результирующего файла в соответствии с приоритетом вида сведений
-        Path resultDir = RequestProcessor.outputDir.resolve(vsInfo.priority);
-        if (Files.notExists(resultDir)) {
-            // Если такого каталога нет, то создаем его
-            try {
-                Files.createDirectory(resultDir);
-            } catch (IOException e) {
-                LOG.error(e.getMessage());
-                throw new RequestException("Не удалось создать каталог " + resultDir, e);
-            }
-        }
         // Формируем имя результирующего файла
-        resultFile = resultDir.resolve(requestFile.toPath().getFileName()).toFile();
+        resultFile = RequestProcessor.outputDir.resolve(requestFile.toPath().getFileName()).toFile();
         // Выполняем преобразование
         try {
             // Читаем подпись вложения в строку
@@ -138,6 +166,15 @@ public class Request {
             LOG.error(e.getMessage());
             throw new RequestException("Не удалось преобразовать в ClientMessage запрос " + resultFile.getName(), new Exception());
         }
+        // Ставим запрос в очередь отправки (крайний срок используется при SCHEDULING = EDF) и сообщаем о нем RequestSender
+        try {
+            RequestProcessor.preparedQueue.add(resultFile.toPath(), Integer.parseInt(vsInfo.priority), timeoutDate.getTimeInMillis());
+        } catch (IOException e) {
+            // Запрос уже в очереди и будет отправлен; после перезапуска его файл будет найден в каталоге prepared
+            LOG.error(String.format("Не удалось записать запрос %s в журнал очереди отправки.", resultFile.getName()));
+            LOG.error(e.getMessage());
+        }
+        RequestSender.signal();
     }
 
     /**
@@ -170,17 +207,27 @@ public class Request {
         } catch (SQLException e) {
             LOG.error(e.getMessage());
         }
+        // Запрос уже передан адаптеру, поэтому номер подтверждается, даже если запись в лог не удалась
+        RequestProcessor.vsCounter.commit(vsInfo.namespace);
+    }
+
+    /**
+     * Метод возвращает зарезервированный номер запроса, если запрос не был обработан
+     */
+    public void releaseIndex() {
+        if (vsInfo != null && requestIndex != null) {
+            RequestProcessor.vsCounter.release(vsInfo.namespace, requestIndex);
+            requestIndex = null;
+        }
     }
 
     /**
      * Метод возвращает информацию вида сведений
      *
-     * @param requestDOM XML-документ с видом сведений
+     * @param namespace Пространство имен корневого элемента запроса
      * @return Информация вида сведений, если оно зарегистрировано, или null в противном случае
      */
-    private static VSInfo getVSInfo(Document requestDOM) {
-        Element root = requestDOM.getDocumentElement();
-        String namespace = root.getNamespaceURI();
+    private static VSInfo getVSInfo(String namespace) {
         if (RequestProcessor.vsInfoArray.isNamespaceRegistered(namespace)) {
             return RequestProcessor.vsInfoArray.getVSInfo(namespace);
         } else {
@@ -188,6 +235,46 @@ public class Request {
         }
     }
 
+    /**
+     * Метод определяет вид сведений по пространству имен корневого элемента, не разбирая весь файл
+     *
+     * @param requestFile Файл с исходным запросом
+     * @return Информация вида сведений
+     */
+    private static VSInfo readVSInfo(File requestFile) throws RequestException, ParsingException {
+        VSInfo vsInfo;
+        try {
+            vsInfo = getVSInfo(XMLTransformer.readRootNamespace(requestFile));
+        } catch (IOException e) {
+            LOG.error(e.getMessage());
+            throw new RequestException(String.format("Файловая ошибка с %s", requestFile.getName()), e);
+        } catch (XMLStreamException e) {
+            LOG.error(e.getMessage());
+            throw new ParsingException(String.format("Ошибка парсинга файла %s.", requestFile.getName()), e);
+        }
+        if (vsInfo == null) {
+            throw new RequestException(String.format("Неизвестный вид сведений в файле %s", requestFile), new Exception());
+        }
+        return vsInfo;
+    }
+
+    /**
+     * Метод извлекает ключевые параметры запроса: из уже построенного DOM-объекта или, если его еще нет,
+     * потоковым проходом по файлу (XPath над DOM - только для сложных выражений)
+     *
+     * @param dom DOM-объект запроса или null, если он еще не построен
+     * @return Ключевые параметры запроса или пустая строка, если их не удалось извлечь
+     */
+    private String extractKeywords(Document dom) {
+        try {
+            return dom != null ? vsInfo.keywordExtractor.extract(dom) : vsInfo.keywordExtractor.extract(requestFile);
+        } catch (IOException | XMLStreamException | SAXException | XPathExpressionException e) {
+            LOG.error(e.getMessage());
+            // Продолжаем обработку запроса, но без ключевых слов
+            return "";
+        }
+    }
+
     public void signFNSRequest() throws SignException {
         Element elementToSign = requestDOM.getDocumentElement();
         try {
@@ -195,7 +282,7 @@ public class Request {
             Element signElement = RequestProcessor.fnsSigner.signXMLDSigDetached(elementToSign, null);
             // Сохраняем запрос в файл .sig
             String signFileName = requestFile.getName().substring(0, requestFile.getName().lastIndexOf('.')) + ".sig";
-            Path signFile = RequestProcessor.signDir.resolve(signFileName);
+            Path signFile = RequestProcessor.getSignDir().resolve(signFileName);
             AbstractTools.writeOutput(signElement, signFile.toFile());
             // Присваиваем полный путь к файлу с подписью члену personalSign
             personalSign = signFile.toString();
@@ -213,7 +300,7 @@ public class Request {
             Element signElement = RequestProcessor.egrnSigner.signXMLDSigDetached(elementToSign, null);
             // Сохраняем запрос в файл .sig
             String signFileName = requestFile.getName().substring(0, requestFile.getName().lastIndexOf('.')) + ".sig";
-            Path signFile = RequestProcessor.signDir.resolve(signFileName);
+            Path signFile = RequestProcessor.getSignDir().resolve(signFileName);
             AbstractTools.writeOutput(signElement, signFile.toFile());
             // Присваиваем полный путь к файлу с подписью члену personalSign
             personalSign = signFile.toString();
@@ -235,7 +322,7 @@ public class Request {
         // Копируем файл в каталог для подписания.
         // Перемещать нельзя, т.к. в каталоге requests должен остаться исходный файл на случай исключений,
         // после которых он перемещается в каталог failed
-        Path targetPath = RequestProcessor.signDir.resolve(requestFile.toPath().getFileName());
+        Path targetPath = RequestProcessor.getSignDir().resolve(requestFile.toPath().getFileName());
         try {
             Files.copy(requestFile.toPath(), targetPath);
         } catch (IOException e) {
@@ -345,7 +432,7 @@ public class Request {
         // Копируем файл вложения в каталог для подписания.
         // Перемещать нельзя, т.к. в каталоге requests должен остаться исходный файл на случай исключений,
         // после которых он перемещается в каталог failed
-        Path targetPath = RequestProcessor.signDir.resolve(requestFile.toPath().getFileName());
+        Path targetPath = RequestProcessor.getSignDir().resolve(requestFile.toPath().getFileName());
         try {
             Files.copy(requestFile.toPath(), targetPath);
         } catch (IOException e) {
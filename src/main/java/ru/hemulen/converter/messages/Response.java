@@ -459,7 +459,17 @@ public class Response {
                 }
                 break;
         }
-        ResponseProcessor.dbConnection.logStatus(log_id, status);
+        // Те же правила повторяются в UPDATE: предыдущий статус мог быть еще не записан в базу потоком отложенной записи
+        switch (status) {
+            case "SENT":
+                ResponseProcessor.dbConnection.logStatus(log_id, status, "ANSWERED", "REJECTED", "FAILED", "POSTED", "DELIVERED");
+                break;
+            case "POSTED":
+                ResponseProcessor.dbConnection.logStatus(log_id, status, "ANSWERED", "REJECTED", "FAILED", "DELIVERED");
+                break;
+            default:
+                ResponseProcessor.dbConnection.logStatus(log_id, status, "ANSWERED", "REJECTED", "FAILED");
+        }
     }
 
     public void logBusinessStatus() throws SQLException {
@@ -470,7 +480,7 @@ public class Response {
             case "FAILED":
                 return;
         }
-        ResponseProcessor.dbConnection.logError(log_id, "BUSINESS", "", errCode, errDescription);
+        ResponseProcessor.dbConnection.logError(log_id, "BUSINESS", "", errCode, errDescription, "ANSWERED", "REJECTED", "FAILED");
     }
 
     public void logReject() throws SQLException {
@@ -479,7 +489,7 @@ public class Response {
             case "ANSWERED":
                 return;
             default:
-                ResponseProcessor.dbConnection.logError(log_id, "REJECTED", "", errCode, errDescription);
+                ResponseProcessor.dbConnection.logError(log_id, "REJECTED", "", errCode, errDescription, "ANSWERED");
         }
     }
 
@@ -490,7 +500,7 @@ public class Response {
             case "REJECTED":
                 return;
             default:
-                ResponseProcessor.dbConnection.logError(log_id, "FAILED", errSource, errCode, errDescription);
+                ResponseProcessor.dbConnection.logError(log_id, "FAILED", errSource, errCode, errDescription, "ANSWERED", "REJECTED");
         }
     }
 
@@ -1,5 +1,7 @@
 package ru.hemulen.converter.messages;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.hemulen.converter.thread.RequestProcessor;
 
 import java.sql.Date;
@@ -7,56 +9,189 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Класс предназначен для подсчета отправленных за сутки запросов и запрета отправки запроса при превышении лимита.
- * Счетчики запросов сохраняются в базу данных и считываются из базы данных
+ * <p>
+ * Счетчик каждого вида сведений - AtomicInteger, поэтому рабочие потоки RequestProcessor получают номера запросов
+ * без блокировок, и номера не повторяются. Номер сначала резервируется (reserve), а после обработки запроса
+ * подтверждается (commit) или возвращается (release), если запрос не был отправлен.
+ * <p>
+ * Счетчики сохраняются в базу данных не после каждого прохода по каталогу, а в фоне: по таймеру
+ * или после заданного количества подтвержденных запросов, одним пакетом. Если приложение аварийно завершилось
+ * между сохранениями, то при загрузке счетчик дополняется максимальным номером запроса из лога за эти сутки,
+ * поэтому после перезапуска суточный лимит не может быть превышен.
  */
 public class VSCounter {
+    private static final Logger LOG = LoggerFactory.getLogger(VSCounter.class.getName());
     // Единственный экземпляр набора счетчиков видов сведений
-    public static Map<String, Integer> counter = new HashMap<>();
+    private static final Map<String, AtomicInteger> counter = new ConcurrentHashMap<>();
+    private final AtomicInteger unsaved = new AtomicInteger();         // Количество подтверждений с момента последнего сохранения
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();   // Признак того, что внеочередное сохранение уже запланировано
+    private ScheduledExecutorService saver;  // Поток фонового сохранения счетчиков
+    private int saveThreshold;               // Количество подтверждений, после которого счетчики сохраняются, не дожидаясь таймера
+    private volatile Date sessionDate;       // Дата, на которую актуальны счетчики
 
     /** Читаем счетчики из базы данных
      * @param actualDate Дата, на которую актуальны счетчики
+     * @param vsInfoArray Описание видов сведений для сопоставления наименований ВС в логе с пространствами имен
      */
-    public void loadVSCounter(Date actualDate) throws SQLException {
+    public synchronized void loadVSCounter(Date actualDate, VSInfoArray vsInfoArray) throws SQLException {
         // Очищаем текущие значения
         counter.clear();
+        sessionDate = actualDate;
         // Читаем ResultSet из базы данных
         ResultSet resultSet = RequestProcessor.dbConnection.getCounter(actualDate);
         // Обрабатываем ResultSet
         while (resultSet.next()) {
-            counter.put(resultSet.getString(1), resultSet.getInt(2));
+            counter.put(resultSet.getString(1), new AtomicInteger(resultSet.getInt(2)));
         }
         resultSet.close();
+        // Сохраненные значения могут отставать от лога, если приложение завершилось между сохранениями.
+        // Номера запросов в логе уникальны и возрастают, поэтому максимальный номер за сутки - нижняя граница счетчика.
+        Map<String, Integer> logged = new HashMap<>();
+        resultSet = RequestProcessor.dbConnection.getLoggedCounter(actualDate);
+        while (resultSet.next()) {
+            logged.put(resultSet.getString(1), resultSet.getInt(2));
+        }
+        resultSet.close();
+        for (Object value : vsInfoArray.getVSInfoSet().values()) {
+            VSInfo vsInfo = (VSInfo) value;
+            Integer maxIndex = logged.get(vsInfo.name);
+            if (maxIndex == null) {
+                continue;
+            }
+            AtomicInteger count = counter.computeIfAbsent(vsInfo.namespace, key -> new AtomicInteger());
+            if (count.get() < maxIndex) {
+                LOG.info(String.format("Счетчик вида сведений %s восстановлен по логу: %d вместо %d.", vsInfo.name, maxIndex, count.get()));
+                count.set(maxIndex);
+                unsaved.incrementAndGet();
+            }
+        }
     }
 
     /**
-     * Сохраняем счетчики в базу данных
-     * @param actualDate Дата, на которую актуальны счетчики
+     * Метод запускает фоновое сохранение счетчиков
+     *
+     * @param savePeriod    Период сохранения счетчиков в миллисекундах
+     * @param saveThreshold Количество подтвержденных запросов, после которого счетчики сохраняются, не дожидаясь таймера
      */
-    public void saveVSCounter(Date actualDate) throws SQLException {
-        RequestProcessor.dbConnection.saveCounter(counter, actualDate);
+    public synchronized void startPersistence(long savePeriod, int saveThreshold) {
+        this.saveThreshold = Math.max(saveThreshold, 1);
+        saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VSCounterSaverThread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(this::saveIfChanged, savePeriod, Math.max(savePeriod, 1), TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Метод увеличивает текущее значение счетчика для вида сведений на единицу и возвращает новое значение
-     * Если счетчика для вида сведений нет, то он создается.
-     * @param namespace Пространство имен вида сведений, счетчик которого надо получить
-     * @return Счетчик запросов вида сведений, включающий текущий запрос
+     * Метод останавливает фоновое сохранение и сохраняет счетчики последний раз
      */
-    public Integer getIndex(String namespace) {
-        if (!counter.containsKey(namespace)) {
-            // Если этот ВС сегодня еще не отправлялся, то добавляем элемент в таблицу счетчиков
-            counter.put(namespace, 0);
+    public void stopPersistence() {
+        if (saver != null) {
+            saver.shutdown();
         }
-        // Увеличиваем счетчик на 1
-        Integer newIndex = counter.get(namespace) + 1;
-        counter.put(namespace, newIndex);
-        return counter.get(namespace);
+        saveIfChanged();
     }
 
-    public void clear() {
-        counter.clear();
+    /**
+     * Сохраняем счетчики в базу данных одним пакетом
+     */
+    public synchronized void saveVSCounter() throws SQLException {
+        // Сбрасываем признак до чтения значений: подтверждения, пришедшие во время сохранения, попадут в следующее
+        int changes = unsaved.getAndSet(0);
+        Map<String, Integer> snapshot = new HashMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : counter.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        try {
+            RequestProcessor.dbConnection.saveCounter(snapshot, sessionDate);
+        } catch (SQLException e) {
+            unsaved.addAndGet(changes);
+            throw e;
+        }
+    }
+
+    /**
+     * Метод сохраняет счетчики, если с момента последнего сохранения они изменились. Вызывается потоком сохранения.
+     */
+    private void saveIfChanged() {
+        saveScheduled.set(false);
+        if (unsaved.get() == 0) {
+            return;
+        }
+        try {
+            saveVSCounter();
+        } catch (SQLException e) {
+            LOG.error("Не удалось сохранить счетчики видов сведений.");
+            LOG.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Метод сохраняет счетчики за прошедшие сутки и обнуляет их для новых суток
+     *
+     * @param newDate Дата новых суток
+     */
+    public synchronized void rollOver(Date newDate) throws SQLException {
+        try {
+            saveVSCounter();
+        } finally {
+            counter.clear();
+            unsaved.set(0);
+            sessionDate = newDate;
+        }
+    }
+
+    /**
+     * Метод резервирует очередной номер запроса вида сведений. Если счетчика для вида сведений нет, то он создается.
+     * @param namespace Пространство имен вида сведений
+     * @return Порядковый номер запроса за сутки, включающий текущий запрос
+     */
+    public int reserve(String namespace) {
+        return counter.computeIfAbsent(namespace, key -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * Метод возвращает текущее значение счетчика вида сведений, не резервируя номер
+     * @param namespace Пространство имен вида сведений
+     * @return Количество зарезервированных за сутки номеров
+     */
+    public int get(String namespace) {
+        AtomicInteger count = counter.get(namespace);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Метод подтверждает зарезервированный номер после того, как запрос обработан и записан в лог.
+     * После saveThreshold подтверждений счетчики сохраняются, не дожидаясь таймера.
+     * @param namespace Пространство имен вида сведений
+     */
+    public void commit(String namespace) {
+        if (unsaved.incrementAndGet() >= saveThreshold && saver != null && saveScheduled.compareAndSet(false, true)) {
+            saver.execute(this::saveIfChanged);
+        }
+    }
+
+    /**
+     * Метод возвращает зарезервированный номер, если запрос не был отправлен.
+     * Номер возвращается, только если после него не было других резервирований: иначе номера повторились бы,
+     * поэтому номер остается израсходованным, а счетчик - не меньше числа отправленных запросов.
+     * @param namespace Пространство имен вида сведений
+     * @param index     Зарезервированный номер
+     */
+    public void release(String namespace, int index) {
+        AtomicInteger count = counter.get(namespace);
+        if (count != null) {
+            count.compareAndSet(index, index - 1);
+        }
     }
 }
@@ -1,5 +1,7 @@
 package ru.hemulen.converter.messages;
 
+import ru.hemulen.converter.utils.TokenBucket;
+
 /**
  * Класс для хранения описания конкретного вида сведений.
  * Объекты этого класса объединяются в классе VSInfoArray.
@@ -11,4 +13,6 @@ public class VSInfo {
     public int dailyLimit;      // Максимальное количество запросов в сутки, которое допускае поставщик ВС
     public String priority;     // Приоритет вида сведений
     public String[] keywords;   // Массив XPath-выражений, которые идентифицируют запрос
+    public KeywordExtractor keywordExtractor;   // Скомпилированные выражения keywords
+    public TokenBucket pacing;  // Темп отправки запросов (элементы rate и burst) или null, если темп не ограничен
 }
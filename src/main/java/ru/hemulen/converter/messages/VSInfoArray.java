@@ -4,10 +4,12 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
+import ru.hemulen.converter.utils.TokenBucket;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathExpressionException;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
@@ -22,7 +24,7 @@ public class VSInfoArray {
     public static int maxPriority = 0;
 
 
-    public VSInfoArray() throws ParserConfigurationException, IOException, SAXException {
+    public VSInfoArray() throws ParserConfigurationException, IOException, SAXException, XPathExpressionException {
         // Инициализируем HashMap
         vsInfoSet = new HashMap<>();
         // Читаем xml-файл с описанием видов сведений
@@ -52,6 +54,15 @@ public class VSInfoArray {
             for (int j=0; j<keywords.getLength(); j++) {
                 vsInfo.keywords[j] = keywords.item(j).getTextContent();
             }
+            // Компилируем XPath-выражения ключевых параметров один раз при загрузке
+            vsInfo.keywordExtractor = new KeywordExtractor(vsInfo.keywords);
+            // Необязательный темп отправки: rate - запросов в час, burst - сколько запросов можно отправить подряд (по умолчанию 1)
+            NodeList rate = vsInfoEntry.getElementsByTagName("rate");
+            if (rate.getLength() > 0) {
+                NodeList burst = vsInfoEntry.getElementsByTagName("burst");
+                vsInfo.pacing = new TokenBucket(Double.parseDouble(rate.item(0).getTextContent().trim()),
+                        burst.getLength() > 0 ? Integer.parseInt(burst.item(0).getTextContent().trim()) : 1);
+            }
             // Добавляем VSInfo в набор
             vsInfoSet.put(vsInfo.namespace, vsInfo);
         }
@@ -10,10 +10,14 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 import ru.hemulen.converter.thread.RequestProcessor;
 import ru.hemulen.converter.utils.AbstractTools;
+import ru.hemulen.converter.utils.DocumentBuilderPool;
+import ru.hemulen.converter.utils.TransletCompiler;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
@@ -22,8 +26,10 @@ import javax.xml.xpath.*;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Properties;
 
 /**
  * Класс, содержащий статические методы для различных преобразований запросов и ответов
@@ -32,80 +38,91 @@ import java.util.Calendar;
  * - извлечение ключевых слов запроса по XPath-выражениям
  */
 public class XMLTransformer {
-    private static final String ToClientMessageStylesheet = "./src/main/resources/ClientMessage.xslt";
-    private static final String FromQueryResultStyleSheet = "./src/main/resources/FromQueryResult.xslt";
-    private static final String ToEGRNTechDescStylesheet = "./src/main/resources/EGRNStatement2TechDesc.xslt";
+    private static final String ToClientMessageStylesheet = "ClientMessage.xslt";
+    private static final String FromQueryResultStyleSheet = "FromQueryResult.xslt";
+    private static final String ToEGRNTechDescStylesheet = "EGRNStatement2TechDesc.xslt";
     // Новая версия технического описания ЕГРН
-    private static final String ToEGRNTechDesc26Stylesheet = "./src/main/resources/EGRNStatement2TechDesc26.xslt";
-    private static final String ToEGRNMainRequestStylesheet = "./src/main/resources/EGRNStatement2Request.xslt";
+    private static final String ToEGRNTechDesc26Stylesheet = "EGRNStatement2TechDesc26.xslt";
+    private static final String ToEGRNMainRequestStylesheet = "EGRNStatement2Request.xslt";
     // Новая версия запроса по ВС ЕГРН
-    private static final String ToEGRNMainRequest26Stylesheet = "./src/main/resources/EGRNStatement2Request26.xslt";
-    private static final String ToESIAClientMessage = "./src/main/resources/ESIA.xslt";
-    private static final String ToFSSPRequest = "./src/main/resources/FSSPStatement2Request.xslt";
-    private static final String SplitFSSPRequest = "./src/main/resources/SplitFSSPRequest.xslt";
-    private static final String ToFSSPResponse = "./src/main/resources/AnswerToFSSPRequest.xslt";
+    private static final String ToEGRNMainRequest26Stylesheet = "EGRNStatement2Request26.xslt";
+    private static final String ToESIAClientMessage = "ESIA.xslt";
+    private static final String ToFSSPRequest = "FSSPStatement2Request.xslt";
+    private static final String SplitFSSPRequest = "SplitFSSPRequest.xslt";
+    private static final String ToFSSPResponse = "AnswerToFSSPRequest.xslt";
 
     private static final Logger LOG = LoggerFactory.getLogger(XMLTransformer.class.getName());
-    private static DocumentBuilderFactory factory;
-    private static DocumentBuilder builder;
-    private static TransformerFactory transformerFactory;
-    private static Transformer transformerToClientMessage;
-    private static Transformer transformerFromQueryResult;
-    private static Transformer transformerEGRNToTechDesc;
-    private static Transformer transformerEGRNToTechDesc26;
-    private static Transformer transformerEGRNToMainRequest;
-    private static Transformer transformerEGRNToMainRequest26;
-    private static Transformer transformerESIAToClientMessage;
-    private static Transformer transformerFSSPToRequest;
-    private static Transformer transformerFSSPRequestToResponse;
-    private static Transformer transformerAnswerFSSPRequest;
-    private static XPathFactory xpathFactory;
-    private static XPath xpath;
+    // Каталог таблиц стилей прежних версий: исправленные на сервере таблицы стилей по-прежнему имеют приоритет
+    private static final String DEFAULT_STYLESHEET_DIR = "./src/main/resources";
+    private static Path stylesheetDir = Paths.get(DEFAULT_STYLESHEET_DIR);  // Каталог с таблицами стилей, которые заменяют встроенные в jar (XSLT_DIR)
+    private static Stylesheet transformerToClientMessage;
+    private static Stylesheet transformerFromQueryResult;
+    private static Stylesheet transformerEGRNToTechDesc;
+    private static Stylesheet transformerEGRNToTechDesc26;
+    private static Stylesheet transformerEGRNToMainRequest;
+    private static Stylesheet transformerEGRNToMainRequest26;
+    private static Stylesheet transformerESIAToClientMessage;
+    private static Stylesheet transformerFSSPToRequest;
+    private static Stylesheet transformerFSSPRequestToResponse;
+    private static Stylesheet transformerAnswerFSSPRequest;
+    // Ни XPathFactory, ни XPath не потокобезопасны, поэтому у каждого потока свой обработчик XPath запросов
+    private static final ThreadLocal<XPath> xpath = ThreadLocal.withInitial(() -> XPathFactory.newInstance().newXPath());
+    private static final ThreadLocal<XMLInputFactory> inputFactory = ThreadLocal.withInitial(XMLInputFactory::newInstance);
 
     static {
-        try {
-            factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            factory.setIgnoringElementContentWhitespace(true);
-            builder = factory.newDocumentBuilder();
-            transformerFactory = TransformerFactory.newInstance();
-
-            // Создаем трансформер для преобразования бизнес-запроса в конверт адаптера
-            transformerToClientMessage = transformerFactory.newTransformer(new StreamSource(new File(ToClientMessageStylesheet)));
+        // Таблицы стилей компилируются (или загружаются из готовых translet'ов) при первом использовании
+        // Создаем трансформер для преобразования бизнес-запроса в конверт адаптера
+        transformerToClientMessage = new Stylesheet(ToClientMessageStylesheet);
 
-            // Создаем трансформер для извлечения бизнес-ответа (содержимого content) из конверта адаптера
-            transformerFromQueryResult = transformerFactory.newTransformer(new StreamSource(new File(FromQueryResultStyleSheet)));
+        // Создаем трансформер для извлечения бизнес-ответа (содержимого content) из конверта адаптера
+        transformerFromQueryResult = new Stylesheet(FromQueryResultStyleSheet);
 
-            // Создаем трансформер для преобразования заявления ЕГРН в техническое описание
-            transformerEGRNToTechDesc = transformerFactory.newTransformer(new StreamSource(new File(ToEGRNTechDescStylesheet)));
+        // Создаем трансформер для преобразования заявления ЕГРН в техническое описание
+        transformerEGRNToTechDesc = new Stylesheet(ToEGRNTechDescStylesheet);
 
-            // Создаем трансформер для преобразования заявления ЕГРН в техническое описание версии v.0.26
-            transformerEGRNToTechDesc26 = transformerFactory.newTransformer(new StreamSource(new File(ToEGRNTechDesc26Stylesheet)));
+        // Создаем трансформер для преобразования заявления ЕГРН в техническое описание версии v.0.26
+        transformerEGRNToTechDesc26 = new Stylesheet(ToEGRNTechDesc26Stylesheet);
 
-            // Создаем трансформер для преобразования заявления ЕГРН в основной запрос
-            transformerEGRNToMainRequest = transformerFactory.newTransformer(new StreamSource(new File(ToEGRNMainRequestStylesheet)));
+        // Создаем трансформер для преобразования заявления ЕГРН в основной запрос
+        transformerEGRNToMainRequest = new Stylesheet(ToEGRNMainRequestStylesheet);
 
-            // Создаем трансформер для преобразования заявления ЕГРН в основной запрос по версии 1.2.2
-            transformerEGRNToMainRequest26 = transformerFactory.newTransformer(new StreamSource(new File(ToEGRNMainRequest26Stylesheet)));
+        // Создаем трансформер для преобразования заявления ЕГРН в основной запрос по версии 1.2.2
+        transformerEGRNToMainRequest26 = new Stylesheet(ToEGRNMainRequest26Stylesheet);
 
-            // Создаем трансформер для преобразования запроса персональных данных пользователя ЕСИА в ClientMessage
-            transformerESIAToClientMessage = transformerFactory.newTransformer(new StreamSource(new File(ToESIAClientMessage)));
+        // Создаем трансформер для преобразования запроса персональных данных пользователя ЕСИА в ClientMessage
+        transformerESIAToClientMessage = new Stylesheet(ToESIAClientMessage);
 
-            // Создаем трансформер для преобразования вложения ФССП в ClientMessage
-            transformerFSSPToRequest = transformerFactory.newTransformer(new StreamSource(new File(ToFSSPRequest)));
+        // Создаем трансформер для преобразования вложения ФССП в ClientMessage
+        transformerFSSPToRequest = new Stylesheet(ToFSSPRequest);
 
-            // Создаем трансформер для преобразования запроса ФССП в ответ ИС УВ
-            transformerFSSPRequestToResponse = transformerFactory.newTransformer(new StreamSource(new File(SplitFSSPRequest)));
+        // Создаем трансформер для преобразования запроса ФССП в ответ ИС УВ
+        transformerFSSPRequestToResponse = new Stylesheet(SplitFSSPRequest);
 
-            // Создаем трансформер для формирования ответа ФССП
-            transformerAnswerFSSPRequest = transformerFactory.newTransformer(new StreamSource(new File(ToFSSPResponse)));
-
-            // Создаем обработчик XPath запросов
-            xpathFactory = XPathFactory.newInstance();
-            xpath = xpathFactory.newXPath();
+        // Создаем трансформер для формирования ответа ФССП
+        transformerAnswerFSSPRequest = new Stylesheet(ToFSSPResponse);
+    }
 
-        } catch (ParserConfigurationException | TransformerConfigurationException e) {
-            LOG.error(e.getMessage());
+    /**
+     * Метод настраивает каталог, таблицы стилей из которого используются вместо встроенных в jar
+     * (по умолчанию ./src/main/resources, как в прежних версиях), и записывает в лог источник каждой таблицы стилей.
+     * Вызывается до начала обработки запросов и ответов.
+     *
+     * @param props Конфигурация приложения
+     */
+    public static void configure(Properties props) {
+        String dir = props.getProperty("XSLT_DIR", "").trim();
+        stylesheetDir = Paths.get(dir.isEmpty() ? DEFAULT_STYLESHEET_DIR : dir);
+        Stylesheet[] stylesheets = {transformerToClientMessage, transformerFromQueryResult, transformerEGRNToTechDesc,
+                transformerEGRNToTechDesc26, transformerEGRNToMainRequest, transformerEGRNToMainRequest26,
+                transformerESIAToClientMessage, transformerFSSPToRequest, transformerFSSPRequestToResponse,
+                transformerAnswerFSSPRequest};
+        for (Stylesheet stylesheet : stylesheets) {
+            Path file = stylesheet.getOverride();
+            if (file != null) {
+                LOG.info(String.format("Таблица стилей %s: файл %s.", stylesheet.name, file.toAbsolutePath()));
+            } else {
+                LOG.info(String.format("Таблица стилей %s: встроенная в jar (файла в каталоге %s нет).", stylesheet.name, stylesheetDir.toAbsolutePath()));
+            }
         }
     }
 
@@ -117,30 +134,41 @@ public class XMLTransformer {
      * @throws IOException  ошибка файловой операции
      * @throws SAXException ошибка парсинга XML
      */
-    public synchronized static Document fileToDocument(File file) throws IOException, SAXException {
+    public static Document fileToDocument(File file) throws IOException, SAXException {
         if (file == null) {
             return null;
         }
-        return builder.parse(file);
+        try {
+            return DocumentBuilderPool.get(true, false, true).parse(file);
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Не удалось создать XML-парсер", e);
+        }
     }
 
     /**
-     * Метод выполняет над DOM-объектом XPath-запросы, описанные в объекте VSInfo, и формирует из их результатов строку с ключевыми параметрами запроса
+     * Метод читает начало XML-файла до корневого элемента и возвращает его пространство имен.
+     * Файл не разбирается целиком, поэтому вид сведений запроса определяется без построения DOM.
      *
-     * @param dom    DOM-объект запроса
-     * @param vsInfo Описание вида сведений, включающее массив XPath-запросов
-     * @return Возвращаемые ключевые параметры запроса
+     * @param file XML-файл
+     * @return URI пространства имен корневого элемента или null, если корневой элемент без пространства имен
+     * @throws IOException        ошибка файловой операции
+     * @throws XMLStreamException ошибка парсинга XML (в том числе файл без корневого элемента)
      */
-    public synchronized static String getKeywords(Document dom, VSInfo vsInfo) throws XPathExpressionException {
-        String keywords = "";
-        for (int i = 0; i < vsInfo.keywords.length; i++) {
-            XPathExpression xpathExpression = xpath.compile(vsInfo.keywords[i]);
-            NodeList nodeList = (NodeList) xpathExpression.evaluate(dom, XPathConstants.NODESET);
-            for (int j = 0; j < nodeList.getLength(); j++) {
-                keywords += nodeList.item(j).getTextContent() + " ";
+    public static String readRootNamespace(File file) throws IOException, XMLStreamException {
+        try (InputStream inputStream = new FileInputStream(file)) {
+            XMLStreamReader reader = inputFactory.get().createXMLStreamReader(inputStream);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        String namespace = reader.getNamespaceURI();
+                        return namespace == null || namespace.isEmpty() ? null : namespace;
+                    }
+                }
+            } finally {
+                reader.close();
             }
         }
-        return keywords.trim();
+        throw new XMLStreamException(String.format("В файле %s нет корневого элемента.", file.getName()));
     }
 
     /**
@@ -153,26 +181,28 @@ public class XMLTransformer {
      * @param attachmentFile Файл вложения
      * @param attachmentSign Подпись файла вложения
      */
-    public synchronized static void createClientMessage(Document requestDOM,
+    public static void createClientMessage(Document requestDOM,
                                                         File resultFile,
                                                         String clientID,
                                                         String personalSign,
                                                         String attachmentFile,
                                                         String attachmentSign) throws TransformerException {
-        transformerToClientMessage.setParameter("ClientID", clientID);
-        transformerToClientMessage.setParameter("PersonalSign", personalSign);
-        transformerToClientMessage.setParameter("AttachmentFile", attachmentFile);
-        transformerToClientMessage.setParameter("AttachmentSign", attachmentSign);
+        Transformer transformer = transformerToClientMessage.getTransformer();
+        transformer.setParameter("ClientID", clientID);
+        transformer.setParameter("PersonalSign", personalSign);
+        transformer.setParameter("AttachmentFile", attachmentFile);
+        transformer.setParameter("AttachmentSign", attachmentSign);
         Source source = new DOMSource(requestDOM);
         Result target = new StreamResult(resultFile);
-        transformerToClientMessage.transform(source, target);
+        transformer.transform(source, target);
     }
 
-    public synchronized static void createESIAClientMessage(Document requestDOM, File resultFile, String clientID) throws TransformerException {
-        transformerESIAToClientMessage.setParameter("ClientID", clientID);
+    public static void createESIAClientMessage(Document requestDOM, File resultFile, String clientID) throws TransformerException {
+        Transformer transformer = transformerESIAToClientMessage.getTransformer();
+        transformer.setParameter("ClientID", clientID);
         Source source = new DOMSource(requestDOM);
         Result target = new StreamResult(resultFile);
-        transformerESIAToClientMessage.transform(source, target);
+        transformer.transform(source, target);
     }
 
     /**
@@ -182,34 +212,36 @@ public class XMLTransformer {
      * @param resultFile  Файл, в который сохраняется содержимое бизнес-ответа
      * @throws TransformerException ошибка преобразования XML
      */
-    public synchronized static void extractPrimaryContent(Document responseDOM, File resultFile) throws TransformerException {
+    public static void extractPrimaryContent(Document responseDOM, File resultFile) throws TransformerException {
         Source source = new DOMSource(responseDOM);
         Result target = new StreamResult(resultFile);
-        transformerFromQueryResult.transform(source, target);
+        transformerFromQueryResult.getTransformer().transform(source, target);
     }
 
-    public synchronized static File createTechDesc(File egrnRequest, String vsName ) throws ParserConfigurationException, SAXException, IOException, TransformerException {
+    public static File createTechDesc(File egrnRequest, String vsName ) throws ParserConfigurationException, SAXException, IOException, TransformerException {
         // Запрос в преобразовании не участвует, но для удовлетворения сигнатуры метода
         // ему нужно подать DOMSource, который получаем из элемента egrnDom
         Element egrnDom = AbstractTools.fileToElement(egrnRequest);
         DOMSource source = new DOMSource(egrnDom.getOwnerDocument());
         // Определяем файл с результатом преобразования (он всегда называется request.xml)
-        File targetFile = RequestProcessor.signDir.resolve("request.xml").toFile();
+        File targetFile = RequestProcessor.getSignDir().resolve("request.xml").toFile();
         StreamResult target = new StreamResult(targetFile);
         switch (vsName) {
             case "ЕГРН":
-                transformerEGRNToTechDesc.setParameter("fileName", egrnRequest.getName());
-                transformerEGRNToTechDesc.transform(source, target);
+                Transformer transformer = transformerEGRNToTechDesc.getTransformer();
+                transformer.setParameter("fileName", egrnRequest.getName());
+                transformer.transform(source, target);
                 break;
             case "ЕГРН_26":
-                transformerEGRNToTechDesc26.setParameter("fileName", egrnRequest.getName());
-                transformerEGRNToTechDesc26.transform(source, target);
+                Transformer transformer26 = transformerEGRNToTechDesc26.getTransformer();
+                transformer26.setParameter("fileName", egrnRequest.getName());
+                transformer26.transform(source, target);
                 break;
         }
         return targetFile;
     }
 
-    public synchronized static File createMainRequest(File egrnStatement, String clientID, String vsName) throws ParserConfigurationException, SAXException, IOException, TransformerException, XPathExpressionException {
+    public static File createMainRequest(File egrnStatement, String clientID, String vsName) throws ParserConfigurationException, SAXException, IOException, TransformerException, XPathExpressionException {
         // Получаем корневой элемент из заявления
         Element egrnElement = AbstractTools.fileToElement(egrnStatement);
         // Извлекаем значения параметров для преобразования
@@ -224,41 +256,44 @@ public class XMLTransformer {
         DOMSource source = new DOMSource(egrnElement.getOwnerDocument());
         switch (vsName) {
             case "ЕГРН":
-                transformerEGRNToMainRequest.setParameter("regionCode", regionCode);
-                transformerEGRNToMainRequest.setParameter("actionCode", actionCode);
-                transformerEGRNToMainRequest.setParameter("fileName", fileName);
-                transformerEGRNToMainRequest.setParameter("clientID", clientID);
-                transformerEGRNToMainRequest.transform(source, target);
+                Transformer transformer = transformerEGRNToMainRequest.getTransformer();
+                transformer.setParameter("regionCode", regionCode);
+                transformer.setParameter("actionCode", actionCode);
+                transformer.setParameter("fileName", fileName);
+                transformer.setParameter("clientID", clientID);
+                transformer.transform(source, target);
                 break;
             case "ЕГРН_26":
-                transformerEGRNToMainRequest26.setParameter("regionCode", regionCode);
-                transformerEGRNToMainRequest26.setParameter("actionCode", actionCode);
-                transformerEGRNToMainRequest26.setParameter("fileName", fileName);
-                transformerEGRNToMainRequest26.setParameter("clientID", clientID);
-                transformerEGRNToMainRequest26.transform(source, target);
+                Transformer transformer26 = transformerEGRNToMainRequest26.getTransformer();
+                transformer26.setParameter("regionCode", regionCode);
+                transformer26.setParameter("actionCode", actionCode);
+                transformer26.setParameter("fileName", fileName);
+                transformer26.setParameter("clientID", clientID);
+                transformer26.transform(source, target);
                 break;
         }
         return targetFile;
     }
 
-    public synchronized static File createFSSPRequest(File fsspStatement, File attachmentFile, String clientID) throws ParserConfigurationException, SAXException, IOException, TransformerException, XPathExpressionException {
+    public static File createFSSPRequest(File fsspStatement, File attachmentFile, String clientID) throws ParserConfigurationException, SAXException, IOException, TransformerException, XPathExpressionException {
         String targetFileName = fsspStatement.getName() + ".cm";
         File targetFile = RequestProcessor.inputDir.resolve(targetFileName).toFile();
         StreamResult target = new StreamResult(targetFile);
         Element fsspDOM = AbstractTools.fileToElement(fsspStatement);
         DOMSource source = new DOMSource(fsspDOM.getOwnerDocument());
         String requestDate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(Calendar.getInstance().getTime());
-        transformerFSSPToRequest.setParameter("fileName", attachmentFile.getName());
-        transformerFSSPToRequest.setParameter("requestDate", requestDate);
-        transformerFSSPToRequest.setParameter("clientID", clientID);
-        transformerFSSPToRequest.transform(source, target);
+        Transformer transformer = transformerFSSPToRequest.getTransformer();
+        transformer.setParameter("fileName", attachmentFile.getName());
+        transformer.setParameter("requestDate", requestDate);
+        transformer.setParameter("clientID", clientID);
+        transformer.transform(source, target);
         return targetFile;
     }
 
-    private synchronized static String getActionCode(Element egrnDom) throws XPathExpressionException {
+    private static String getActionCode(Element egrnDom) throws XPathExpressionException {
         // Определяем код учетно-регистрационного действия
         String actionCodeQuery = "/*[local-name()='EGRNRequest']/*[local-name()='header']/*[local-name()='actionCode']/text()";
-        XPathExpression exp = xpath.compile(actionCodeQuery);
+        XPathExpression exp = xpath.get().compile(actionCodeQuery);
         Object actionCodeResult = exp.evaluate(egrnDom, XPathConstants.STRING);
         String actionCode = null;
         if (actionCodeResult != null) {
@@ -267,10 +302,10 @@ public class XMLTransformer {
         return actionCode;
     }
 
-    private synchronized static String getRegionCode(Element egrnDom) throws XPathExpressionException {
+    private static String getRegionCode(Element egrnDom) throws XPathExpressionException {
         // Определяем все коды регионов в заявлении
         String regionCodeQuery = "//*[local-name()='region']/*[local-name()='code']";
-        XPathExpression exp = xpath.compile(regionCodeQuery);
+        XPathExpression exp = xpath.get().compile(regionCodeQuery);
         Object regionCodeResult = exp.evaluate(egrnDom, XPathConstants.NODESET);
         NodeList regionCodes = (NodeList) regionCodeResult;
         String regionCode = "";
@@ -278,12 +313,12 @@ public class XMLTransformer {
             // Если в явном виде коды региона в заявлении не указаны, то
             // определяем код региона из кадастрового номера объекта недвижимости
             String cadastralNumberQuery = "//*[local-name()='cadastralNumber']/*[local-name()='cadastralNumber']";
-            exp = xpath.compile(cadastralNumberQuery);
+            exp = xpath.get().compile(cadastralNumberQuery);
             String cadastralNumberResult = (String) exp.evaluate(egrnDom, XPathConstants.STRING);
             if (cadastralNumberResult.isEmpty()) {
                 // Пробуем другой вариант поиска кадастрового номера, используемого в запросах requestCopyAction
                 cadastralNumberQuery = "//*[local-name()='objectCadastralNumber']";
-                exp = xpath.compile(cadastralNumberQuery);
+                exp = xpath.get().compile(cadastralNumberQuery);
                 cadastralNumberResult = (String) exp.evaluate(egrnDom, XPathConstants.STRING);
             }
             if (! cadastralNumberResult.isEmpty()) {
@@ -336,7 +371,7 @@ public class XMLTransformer {
 
     public static String getFSSPDocumentKey(Element request) throws XPathExpressionException {
         String documentIdQuery = "//*[local-name()='Document']/*[local-name()='ID']";
-        XPathExpression exp = xpath.compile(documentIdQuery);
+        XPathExpression exp = xpath.get().compile(documentIdQuery);
         NodeList documentIdNodes = (NodeList) exp.evaluate(request, XPathConstants.NODESET);
         if (documentIdNodes.getLength() !=0) {
             return documentIdNodes.item(0).getTextContent();
@@ -347,7 +382,7 @@ public class XMLTransformer {
     public static String getElementValue(Node root, String tagName){
         String query = String.format("//*[local-name()='%s']/text()", tagName);
         try {
-            XPathExpression exp = xpath.compile(query);
+            XPathExpression exp = xpath.get().compile(query);
             return  (String) exp.evaluate(root, XPathConstants.STRING);
         } catch (XPathExpressionException e) {
             return null;
@@ -357,18 +392,20 @@ public class XMLTransformer {
     public static String splitFSSPRequest(Document requestDOM, String docKey) throws TransformerException {
         StreamResult target = new StreamResult(new StringWriter());
         DOMSource source = new DOMSource(requestDOM);
-        transformerFSSPRequestToResponse.setParameter("DocKey", docKey);
-        transformerFSSPRequestToResponse.transform(source, target);
+        Transformer transformer = transformerFSSPRequestToResponse.getTransformer();
+        transformer.setParameter("DocKey", docKey);
+        transformer.transform(source, target);
         return target.getWriter().toString();
     }
 
     public static File answerFSSPRequest(File request, File targetFile) throws IOException, ParserConfigurationException, SAXException, TransformerException {
         String currentTimestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(Calendar.getInstance().getTime());
-        transformerAnswerFSSPRequest.setParameter("Timestamp", currentTimestamp);
+        Transformer transformer = transformerAnswerFSSPRequest.getTransformer();
+        transformer.setParameter("Timestamp", currentTimestamp);
         StreamResult target = new StreamResult(targetFile);
         Element fsspDOM = AbstractTools.fileToElement(request);
         DOMSource source = new DOMSource(fsspDOM.getOwnerDocument());
-        transformerAnswerFSSPRequest.transform(source, target);
+        transformer.transform(source, target);
         // Читаем файл в строку
         String content = new String(Files.readAllBytes(targetFile.toPath()));
         // Удаляем namespace xmlns:uuid="java.util.UUID", из-за которого адаптер не подписывает ответ
@@ -379,4 +416,67 @@ public class XMLTransformer {
         fw.close();
         return targetFile;
     }
+
+    /**
+     * Таблица стилей, скомпилированная один раз в потокобезопасный объект Templates.
+     * Сам Transformer не потокобезопасен, поэтому каждый поток получает собственный экземпляр,
+     * и преобразования разных потоков выполняются параллельно без общей блокировки.
+     * Templates создаются при первом использовании: из файла каталога XSLT_DIR, если он там есть,
+     * иначе из translet'а, скомпилированного при сборке (или из ресурса jar).
+     */
+    private static class Stylesheet {
+        private final String name;
+        private volatile Templates templates;
+        private final ThreadLocal<Transformer> transformer;
+
+        private Stylesheet(String name) {
+            this.name = name;
+            transformer = new ThreadLocal<>();
+        }
+
+        /**
+         * Метод возвращает трансформер текущего потока, очищенный от параметров предыдущего преобразования
+         *
+         * @return Трансформер таблицы стилей
+         * @throws TransformerConfigurationException ошибка создания трансформера
+         */
+        private Transformer getTransformer() throws TransformerConfigurationException {
+            Transformer result = transformer.get();
+            if (result == null) {
+                result = getTemplates().newTransformer();
+                transformer.set(result);
+            } else {
+                result.reset();
+            }
+            return result;
+        }
+
+        /**
+         * Метод возвращает файл таблицы стилей в каталоге XSLT_DIR или null, если используется встроенная в jar
+         */
+        private Path getOverride() {
+            Path file = stylesheetDir.resolve(name);
+            return Files.exists(file) ? file : null;
+        }
+
+        private Templates getTemplates() throws TransformerConfigurationException {
+            Templates result = templates;
+            if (result == null) {
+                synchronized (this) {
+                    result = templates;
+                    if (result == null) {
+                        Path file = getOverride();
+                        if (file != null) {
+                            LOG.info(String.format("Используется таблица стилей %s.", file));
+                            result = TransformerFactory.newInstance().newTemplates(new StreamSource(file.toFile()));
+                        } else {
+                            result = TransletCompiler.loadTemplates(name);
+                        }
+                        templates = result;
+                    }
+                }
+            }
+            return result;
+        }
+    }
 }
@@ -6,18 +6,26 @@ import org.xml.sax.SAXException;
 import ru.hemulen.crypto.DigitalSignatureFactory;
 import ru.hemulen.converter.db.ConverterDB;
 import ru.hemulen.converter.exceptions.OverlimitException;
+import ru.hemulen.converter.exceptions.PacingException;
 import ru.hemulen.converter.exceptions.ParsingException;
 import ru.hemulen.converter.exceptions.RequestException;
 import ru.hemulen.converter.exceptions.SignException;
+import ru.hemulen.converter.messages.OverlimitBatch;
 import ru.hemulen.converter.messages.Request;
 import ru.hemulen.converter.messages.VSCounter;
+import ru.hemulen.converter.messages.VSInfo;
 import ru.hemulen.converter.messages.VSInfoArray;
 import ru.hemulen.converter.signer.EGRNSigner;
 import ru.hemulen.converter.signer.FNSSigner;
+import ru.hemulen.converter.utils.Backpressure;
+import ru.hemulen.converter.utils.DirectoryLister;
+import ru.hemulen.converter.utils.DirectoryWatcher;
+import ru.hemulen.converter.utils.FileReadinessDetector;
+import ru.hemulen.converter.utils.PreparedQueue;
+import ru.hemulen.converter.utils.WaitingQueue;
 
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -32,37 +40,54 @@ import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Класс выполняет сканирование каталога, определенного в параметре EXCHANGE_PATH конфигурации.
  * Каждый обнаруженный в каталоге файл передается на обработку.
  * Если обработка завершилась успешно, то файл перемещается в подкаталог processed.
  * Если обработка завершилась с ошибкой, то файл перемещается в подкаталог failed, а ошибка записывается в лог.
- * Если превышен суточный лимит отправки запросов, то файл перемещается в подкаталог overlimit.
+ * Если превышен суточный лимит отправки запросов, то файл перемещается в очередь своего вида сведений в подкаталоге overlimit
+ * (сверхлимитные запросы прохода записываются в лог одним пакетным запросом и перемещаются одним набором),
+ * откуда возвращается в обработку в порядке поступления, когда у вида сведений снова появляется лимит.
+ * Файлы обрабатываются параллельно пулом рабочих потоков, размер которого задается параметром REQUEST_WORKERS.
  */
 public class RequestProcessor extends Thread {
     private static final Logger LOG = LoggerFactory.getLogger(RequestProcessor.class.getName());
     private Properties props;
     private Boolean isRunnable;
     private long sleepTime;                 // Время задержки перед следующим опросом каталога, если он оказывается пуст
-    public static Calendar currentDate;     // Вспомогательная переменная для определения начала нового дня
+    private long rescanTime;                // Интервал контрольного пересканирования каталога, если работает WatchService
+    private ExecutorService workerPool;     // Пул рабочих потоков, параллельно обрабатывающих файлы запросов
+    private DirectoryLister lister;         // Источник порций файлов каталога requests в порядке поступления
+    private FileReadinessDetector readinessDetector;    // Отсеивает еще не дописанные файлы запросов
+    private int listChunkSize;              // Максимальное количество файлов в одной порции
+    public static volatile Calendar currentDate;     // Вспомогательная переменная для определения начала нового дня
     public static ConverterDB dbConnection; // Подключение к БД PostgreSQL со счетчиками, логами и прочим
     public static Path inputDir;            // Каталог, откуда забираются запросы ИС УВ на обработку
     public static Path processedDir;        // Каталог, куда складываются обработанные запросы ИС УВ
     public static Path failedDir;           // Каталог, куда складываются запросы ИС УВ, при обработке которых возникло исключение
     public static Path overlimitDir;        // Каталог, куда складываются запросы ИС УВ, чей суточный лимит на отправку исчерпан
     public static Path outputDir;           // Каталог, куда складываются запросы СМЭВ-адаптера (используется в Request, поэтому public
+    public static PreparedQueue preparedQueue;  // Очередь отправки запросов из каталога outputDir (используется в Request и RequestSender)
+    public static Backpressure backpressure;    // Ограничение приема запросов при переполнении очереди отправки или null, если ограничение выключено
     public static Path outputDir13;         // Каталог, куда складываются запросы для instance СМЭВ-адаптера, работающего с версией схем 1.3 СМЭВ
     public static Path attachmentDir;       // Каталог, куда складываются файлы вложений к запросам СМЭВ-адаптера
-    public static Path signDir;             // Каталог, в который временно помещается файл с подписью XMLDSig или файлы вложений для подписи PKCS7
+    public static Path signDir;             // Каталог, в подкаталогах которого рабочие потоки временно размещают подписи XMLDSig и файлы вложений для подписи PKCS7
+    private static final ThreadLocal<Path> workerSignDir = new ThreadLocal<>(); // Подкаталог sign текущего рабочего потока
     public static VSInfoArray vsInfoArray;  // Класс с описанием всех обрабатываемых видов сведений
     public static VSCounter vsCounter;      // Класс со счетчиком всех отправленных за сутки сообщений каждого ВС
+    public static WaitingQueue waitingQueue = new WaitingQueue();  // Запросы, ожидающие своего времени по темпу отправки вида сведений
+    public static OverlimitBatch overlimitBatch = new OverlimitBatch();    // Сверхлимитные запросы текущего прохода, ожидающие записи в лог и переноса в overlimit
     public static FNSSigner fnsSigner;      // Подписыватель XMLDSig ВС ФНС
     public static EGRNSigner egrnSigner;    // Подписыватель PKCS7 ВС ЕГРН
-    public static boolean isFNSSignRegistered;    // Признак успешной регистрации подписи ФНС
-    public static boolean isEGRNSignRegistered;   // Признак успешной регистрации подписи ЕГРН
+    public static volatile boolean isFNSSignRegistered;    // Признак успешной регистрации подписи ФНС
+    public static volatile boolean isEGRNSignRegistered;   // Признак успешной регистрации подписи ЕГРН
+    public static boolean isDeadlineScheduling;             // Признак планирования по крайнему сроку запросов (SCHEDULING = EDF)
 
     /**
      * Конструктор проверяет и создает при необходимости нужные каталоги
@@ -78,19 +103,6 @@ public class RequestProcessor extends Thread {
         dbConnection = new ConverterDB(props);
         LOG.info("Создано подключение к PostgreSQL.");
 
-        // Устанавливаем текущую дату
-        currentDate = Calendar.getInstance();
-        // Преобразуем дату в SQL-дату
-        Date currentSQLDate = new Date(currentDate.getTimeInMillis());
-        // Читаем значения счетчиков ВС на эту дату
-        vsCounter = new VSCounter();
-        try {
-            vsCounter.loadVSCounter(currentSQLDate);
-        } catch (Exception e) {
-            LOG.error(e.getMessage());
-        }
-        LOG.info("Загружены счетчики видов сведений.");
-
         // Запуск процесса настраивается в конфигурации
         isRunnable = Boolean.parseBoolean(props.getProperty("REQUEST_PROCESSOR"));
 
@@ -133,6 +145,10 @@ public class RequestProcessor extends Thread {
                 LOG.error(e.getMessage());
             }
         }
+        readinessDetector = new FileReadinessDetector(Long.parseLong(props.getProperty("FILE_SETTLE_TIME", "2000").trim()));
+        listChunkSize = Integer.parseInt(props.getProperty("LIST_CHUNK_SIZE", "1000").trim());
+        isDeadlineScheduling = "EDF".equalsIgnoreCase(props.getProperty("SCHEDULING", "PRIORITY").trim());
+        lister = new DirectoryLister(inputDir, listChunkSize, (path, attributes) -> readinessDetector.isReady(path, attributes) && waitingQueue.isDue(path, attributes));
         processedDir = inputDir.resolve("processed");
         failedDir = inputDir.resolve("failed");
         overlimitDir = inputDir.resolve("overlimit");
@@ -179,6 +195,39 @@ public class RequestProcessor extends Thread {
         }
         LOG.info("Загружен массив с описанием видов сведений");
 
+        // Восстанавливаем очередь отправки подготовленных запросов (нужен максимальный приоритет видов сведений)
+        try {
+            preparedQueue = new PreparedQueue(outputDir, Paths.get(props.getProperty("EXCHANGE_PATH"), "prepared.journal"),
+                    isDeadlineScheduling, VSInfoArray.maxPriority);
+        } catch (IOException e) {
+            LOG.error("Не удалось восстановить очередь отправки подготовленных запросов. Работа завершается.");
+            LOG.error(e.getMessage());
+            System.exit(1);
+        }
+        // Если адаптер не успевает забирать запросы, то прием запросов приостанавливается, начиная с низких приоритетов
+        int highWatermark = Integer.parseInt(props.getProperty("PREPARED_HIGH_WATERMARK", "0").trim());
+        if (highWatermark > 0) {
+            int lowWatermark = Integer.parseInt(props.getProperty("PREPARED_LOW_WATERMARK", String.valueOf(highWatermark / 2)).trim());
+            long maxDelay = Long.parseLong(props.getProperty("BACKPRESSURE_MAX_DELAY", "60000").trim());
+            backpressure = new Backpressure(lowWatermark, highWatermark, VSInfoArray.maxPriority, maxDelay);
+            LOG.info(String.format("Прием запросов ограничивается при очереди отправки от %d до %d запросов.", lowWatermark, highWatermark));
+        }
+
+        // Устанавливаем текущую дату
+        currentDate = Calendar.getInstance();
+        // Преобразуем дату в SQL-дату
+        Date currentSQLDate = new Date(currentDate.getTimeInMillis());
+        // Читаем значения счетчиков ВС на эту дату (описание видов сведений нужно для сверки счетчиков с логом)
+        vsCounter = new VSCounter();
+        try {
+            vsCounter.loadVSCounter(currentSQLDate, vsInfoArray);
+        } catch (Exception e) {
+            LOG.error(e.getMessage());
+        }
+        vsCounter.startPersistence(Long.parseLong(props.getProperty("COUNTER_SAVE_FREQ", "10000").trim()),
+                Integer.parseInt(props.getProperty("COUNTER_SAVE_THRESHOLD", "100").trim()));
+        LOG.info("Загружены счетчики видов сведений.");
+
         // Инициализируем фабрику
         DigitalSignatureFactory.init(props);
         // Создаем объекты "подписывателей" запросов в ФНС и в ЕГРН
@@ -209,207 +258,352 @@ public class RequestProcessor extends Thread {
 
         // Наконец читаем время задержки, на которое процесс засыпает, если при очередном проходе в каталоге ничего не оказывается
         sleepTime = Long.parseLong(props.getProperty("REQUEST_FREQ"));
+        rescanTime = Long.parseLong(props.getProperty("RESCAN_FREQ", "60000").trim());
         LOG.info("Установлено время задержки обработки запросов.");
+
+        // Создаем пул рабочих потоков для параллельной обработки запросов (по умолчанию - один поток, как раньше)
+        int workers = Integer.parseInt(props.getProperty("REQUEST_WORKERS", "1").trim());
+        AtomicInteger workerNumber = new AtomicInteger();
+        workerPool = Executors.newFixedThreadPool(Math.max(workers, 1),
+                runnable -> new Thread(runnable, "RequestWorker-" + workerNumber.incrementAndGet()));
+        LOG.info(String.format("Создан пул из %d потоков обработки запросов.", Math.max(workers, 1)));
         LOG.info("RequestProcessor инициализирован.");
     }
 
     @Override
     public void run() {
         LOG.info(String.format("Параметр запуска потока isRunnable: %s.", Boolean.toString(isRunnable)));
+        // Новые файлы в каталоге requests будят поток сразу, а пересканирование по таймеру остается страховкой
+        DirectoryWatcher watcher = new DirectoryWatcher("RequestWatcherThread", inputDir);
+        long idleTime = watcher.isWatching() ? rescanTime : sleepTime;
         while (isRunnable) {
-            // Проверяем переход суток, чтобы сбросить счетчики отправленных запросов,
-            // очистить базу данных H2 и перенести overlimited запросы в каталог requests
+            // Проверяем переход суток, чтобы сбросить счетчики отправленных запросов
             checkNewDay();
-            // Читаем файлы в рабочем каталоге
-            Set<Path> files = getFileList();
-            if (files.isEmpty()) {
-                // Если каталог пуст, то засыпаем на какое-то время и начинаем цикл while заново.
+            // Сверхлимитные запросы прошлых дней возвращаются в обработку в пределах оставшегося лимита их видов сведений
+            Map<Path, VSInfo> replay = nextOverlimitChunk();
+            // Читаем очередную порцию самых старых файлов в рабочем каталоге
+            List<Path> files = lister.nextChunk();
+            if (files.isEmpty() && replay.isEmpty()) {
+                // Если каталог пуст (или закончен круг по каталогу), то ждем появления файла (или истечения интервала пересканирования) и начинаем цикл while заново.
                 try {
                     LOG.info("Запросы отсутствуют.");
-                    sleep(sleepTime);
+                    // Если в каталоге есть недописанные или ожидающие своего времени файлы, просыпаемся к моменту их готовности
+                    watcher.await(Math.min(idleTime, Math.min(readinessDetector.getPendingDelay(), waitingQueue.getPendingDelay())));
                     continue;
                 } catch (InterruptedException e) {
                     LOG.error(e.getMessage());
                 }
             }
-            Iterator<Path> iterator = files.iterator();
+            // Раздаем файлы рабочим потокам пула и дожидаемся обработки всего набора,
+            // чтобы смена суток и сохранение счетчиков выполнялись между проходами, а не во время них
+            List<Future<Boolean>> results = new LinkedList<>();
+            // Запросы из очереди overlimit поступили раньше, поэтому раздаются первыми
+            for (Map.Entry<Path, VSInfo> entry : replay.entrySet()) {
+                results.add(workerPool.submit(() -> processFile(entry.getKey(), entry.getValue())));
+            }
+            for (Path file : files) {
+                results.add(workerPool.submit(() -> processFile(file, null)));
+            }
             int filesNum = 0; // Счетчик успешно обработанных запросов
-            while (iterator.hasNext()) {
-                Path file = iterator.next();
-                if (isFileAccessible(file.toFile())) {
-                    try {
-                        // Создаем объект Request
-                        Request request = new Request(file.toFile());
-                        String vsName = request.getVSName();
-                        switch (vsName) {
-                            case "Unknown":
-                                throw new RequestException("Неизвестный вид сведений " + file.getFileName(), new Exception());
-                            case "2-НДФЛ":
-                            case "Доходы ФЛ НА":
-                                if (isFNSSignRegistered) {
-                                    request.signFNSRequest();
-                                    request.process();
-                                    request.log();
-                                    clearSignDir();
-                                    break;
-                                } else {
-                                    throw new SignException(String.format("Подпись ФНС не инициализирована. Файл %s не обработан.", file.getFileName()), new Exception());
-                                }
-                            case "Судимость":
-                                if (isEGRNSignRegistered) {
-                                    request.signMVDRequest();
-                                    request.process();
-                                    request.log();
-                                    clearSignDir();
-                                } else {
-                                    throw new SignException(String.format("Подпись ЕГРН не инициализирована. Файл %s не обработан.", file.getFileName()), new Exception());
-                                }
-                                break;
-                            case "ЕГРН":
-                            case "ЕГРН_26": // Новая версия EGRNRequest
-                                if (isEGRNSignRegistered) {
-                                    try {
-                                        // Создаем техническое описание и подписываем его вместе с заявлением,
-                                        // архивируем все с подписями в файл вложения, подписываем файл вложения,
-                                        // создаем файл запроса.
-                                        // При этом request меняет значение члена requestFile на файл с запросом в ЕГРН
-                                        request.generateEGRNRequest(vsName);
-                                        // Первоначальный file в generateEGRNRequest заменяется на сгенерированный файл.
-                                        // Поэтому его нужно восстановить.
-                                        file = request.getRequestFile().toPath();
-                                    } catch (IOException e) {
-                                        throw new RequestException(String.format("Не удалось переместить заявление ЕГРН %s из каталога requests.", file.getFileName()), new Exception());
-                                    } catch (ParserConfigurationException | SAXException e) {
-                                        throw new RequestException(String.format("Не удалось обработать заявление ЕГРН %s.", file.getFileName()), new Exception());
-                                    }
-                                    // Присваиваем текущему файлу вновь созданный файл запроса в ЕГРН
-                                    request.process();
-                                    request.log();
-                                    clearSignDir();
-                                    break;
-                                } else {
-                                    throw new SignException(String.format("Подпись ЕГРН не инициализирована. Файл %s не обработан.", file.getFileName()), new Exception());
-                                }
-                            case "Персональные данные пользователя ЕСИА":
-                                request.generateESIARequest();
-                                request.log();
-                                break;
-                            case "ЕРН":
-                                // Запрос ЕРН должен отправляться в адаптер по версии схем СМЭВ 1.3
-                                request.processTo13();
-                                request.log();
-                                break;
-                            case "ФССП":
-                                if (isEGRNSignRegistered) {
-                                    try {
-                                        request.generateFSSPRequest();
-                                        file = request.getRequestFile().toPath();
+            for (Future<Boolean> result : results) {
+                try {
+                    if (result.get()) {
+                        filesNum++;
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    LOG.error(e.getMessage());
+                }
+            }
+            LOG.info(String.format("Обработано %d запросов из %d.", filesNum, results.size()));
+            // Сверхлимитные запросы прохода записываются в лог и переносятся в каталог overlimit одним набором
+            flushOverlimit();
+            // Счетчики сохраняются в базе данных в фоне (см. VSCounter.startPersistence)
+        }
+        workerPool.shutdown();
+        vsCounter.stopPersistence();
+        watcher.close();
+    }
 
-                                    } catch (IOException e) {
-                                        throw new RequestException(String.format("Не удалось переместить вложение ФССП %s из каталога requests.", file.getFileName()), new Exception());
-                                    } catch (ParserConfigurationException | SAXException e) {
-                                        throw new RequestException(String.format("Не удалось обработать вложение ФССП %s.", file.getFileName()), new Exception());
-                                    }
-                                    request.process();
-                                    request.log();
-                                    clearSignDir();
-                                    break;
-                                }
-                                else {
-                                    throw new SignException(String.format("Подпись ЕГРН не инициализирована. Файл с вложением ФССП %s не обработан.", file.getFileName()), new Exception());
-                                }
-                            default:
-                                // Преобразуем запрос в ClientMessage
-                                request.process();
-                                // Логируем результат обработки запроса в БД
-                                request.log();
-                        }
-                        // Если не выкинуто исключение, то переносим файл в каталог processed
-                        // Перезаписываем существующий файл, потому что ИС УВ может посылать одинаковые файлы в разные дни
-                        Path target = processedDir.resolve(file.getFileName());
+    /**
+     * Метод обрабатывает один файл запроса. Вызывается из рабочих потоков пула workerPool.
+     *
+     * @param file   Файл запроса в каталоге requests или в очереди overlimit
+     * @param vsInfo Вид сведений запроса, если он уже известен (для запросов из очереди overlimit), или null
+     * @return true, если запрос обработан и перенесен в каталог processed, и false в противном случае
+     */
+    private boolean processFile(Path file, VSInfo vsInfo) {
+        Request request = null;
+        try {
+            // Создаем объект Request (вид сведений запроса из очереди overlimit повторно не определяется)
+            request = vsInfo == null ? new Request(file.toFile()) : new Request(file.toFile(), vsInfo);
+            String vsName = request.getVSName();
+            // Запрос неизвестного вида сведений не создается: Request выбрасывает RequestException, и файл переносится в failed
+            switch (vsName) {
+                case "2-НДФЛ":
+                case "Доходы ФЛ НА":
+                    if (isFNSSignRegistered) {
+                        request.signFNSRequest();
+                        request.process();
+                        request.log();
+                        clearSignDir();
+                        break;
+                    } else {
+                        throw new SignException(String.format("Подпись ФНС не инициализирована. Файл %s не обработан.", file.getFileName()), new Exception());
+                    }
+                case "Судимость":
+                    if (isEGRNSignRegistered) {
+                        request.signMVDRequest();
+                        request.process();
+                        request.log();
+                        clearSignDir();
+                    } else {
+                        throw new SignException(String.format("Подпись ЕГРН не инициализирована. Файл %s не обработан.", file.getFileName()), new Exception());
+                    }
+                    break;
+                case "ЕГРН":
+                case "ЕГРН_26": // Новая версия EGRNRequest
+                    if (isEGRNSignRegistered) {
                         try {
-                            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
-                            filesNum++; // Увеличиваем счетчик успешно обработанных файлов
+                            // Создаем техническое описание и подписываем его вместе с заявлением,
+                            // архивируем все с подписями в файл вложения, подписываем файл вложения,
+                            // создаем файл запроса.
+                            // При этом request меняет значение члена requestFile на файл с запросом в ЕГРН
+                            request.generateEGRNRequest(vsName);
+                            // Первоначальный file в generateEGRNRequest заменяется на сгенерированный файл.
+                            // Поэтому его нужно восстановить.
+                            file = request.getRequestFile().toPath();
                         } catch (IOException e) {
-                            LOG.error("Не получается переместить файл " + file.getFileName());
+                            throw new RequestException(String.format("Не удалось переместить заявление ЕГРН %s из каталога requests.", file.getFileName()), new Exception());
+                        } catch (ParserConfigurationException | SAXException e) {
+                            throw new RequestException(String.format("Не удалось обработать заявление ЕГРН %s.", file.getFileName()), new Exception());
                         }
-                    } catch (RequestException e) {
-                        // Логируем исключение и переносим файл в каталог failed
-                        LOG.error(e.getMessage());
-                        Path target = failedDir.resolve(file.getFileName());
-                        try {
-                            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
-                        } catch (IOException ex) {
-                            LOG.error(String.format("Не удалось переместить файл %s в каталог failed", file.getFileName()));
-                        }
-                        // Очищаем каталог sign на всякий случай
+                        // Присваиваем текущему файлу вновь созданный файл запроса в ЕГРН
+                        request.process();
+                        request.log();
                         clearSignDir();
-                    } catch (OverlimitException e) {
-                        // Переносим файл в каталог overlimit
-                        Path target = overlimitDir.resolve(file.getFileName());
+                        break;
+                    } else {
+                        throw new SignException(String.format("Подпись ЕГРН не инициализирована. Файл %s не обработан.", file.getFileName()), new Exception());
+                    }
+                case "Персональные данные пользователя ЕСИА":
+                    request.generateESIARequest();
+                    request.log();
+                    break;
+                case "ЕРН":
+                    // Запрос ЕРН должен отправляться в адаптер по версии схем СМЭВ 1.3
+                    request.processTo13();
+                    request.log();
+                    break;
+                case "ФССП":
+                    if (isEGRNSignRegistered) {
                         try {
-                            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
-                        } catch (IOException ex) {
-                            LOG.error(String.format("Не удалось переместить файл %s в каталог overlimit", file.getFileName()));
-                        }
-                    } catch (SignException e) {
-                        // Пытаемся заново инициализировать подписи
-                        if (!isFNSSignRegistered) {
-                            try {
-                                String fnsSignAlias = props.getProperty("FNS_SIGN_ALIAS");
-                                String fnsSignPassword = props.getProperty("FNS_SIGN_PASSWORD");
-                                if (!fnsSignAlias.isEmpty() && !fnsSignPassword.isEmpty()) {
-                                    fnsSigner = new FNSSigner(fnsSignAlias, fnsSignPassword);
-                                    isFNSSignRegistered = true;
-                                    LOG.info("Зарегистрирована подпись ФНС.");
-                                } else {
-                                    LOG.error("В файле конфигурации не заданы псевдоним или пароль подписи ФНС.");
-                                }
-                            } catch (UnrecoverableKeyException | NoSuchAlgorithmException | KeyStoreException | CertificateException ex) {
-                                isFNSSignRegistered = false;
-                                LOG.error("Не удалось зарегистрировать подпись ФНС.");
-                                LOG.error(ex.getMessage());
-                            }
-                        }
-                        if (!isEGRNSignRegistered) {
-                            try {
-                                String egrnSignAlias = props.getProperty("EGRN_SIGN_ALIAS");
-                                String egrnSignPassword = props.getProperty("EGRN_SIGN_PASSWORD");
-                                if (!egrnSignAlias.isEmpty() && !egrnSignPassword.isEmpty()) {
-                                    egrnSigner = new EGRNSigner(egrnSignAlias, egrnSignPassword);
-                                    isEGRNSignRegistered = true;
-                                    LOG.info("Зарегистрирована подпись ЕГРН.");
-                                } else {
-                                    LOG.error("В файле конфигурации не заданы псевдоним или пароль подписи ЕГРН.");
-                                }
-                            } catch (UnrecoverableKeyException | NoSuchAlgorithmException | KeyStoreException | CertificateException ex) {
-                                isEGRNSignRegistered = false;
-                                LOG.error("Не удалось зарегистрировать подпись ЕГРН.");
-                                LOG.error(ex.getMessage());
-                            }
-                        }
+                            request.generateFSSPRequest();
+                            file = request.getRequestFile().toPath();
 
-                        // Файл, на котором было выброшено исключение, оставляется в папке requests
-                        // и будет обработан при восстановлении подписей
-                    } catch (ParsingException e) {
-                        // Файл, который не удалось распарсить переносим в каталог failed
-                        Path target = failedDir.resolve(file.getFileName());
-                        try {
-                            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
-                        } catch (IOException ex) {
-                            LOG.error(String.format("Не удалось переместить файл %s в каталог failed", file.getFileName()));
+                        } catch (IOException e) {
+                            throw new RequestException(String.format("Не удалось переместить вложение ФССП %s из каталога requests.", file.getFileName()), new Exception());
+                        } catch (ParserConfigurationException | SAXException e) {
+                            throw new RequestException(String.format("Не удалось обработать вложение ФССП %s.", file.getFileName()), new Exception());
                         }
-                        // Очищаем каталог sign на всякий случай
+                        request.process();
+                        request.log();
                         clearSignDir();
+                        break;
+                    }
+                    else {
+                        throw new SignException(String.format("Подпись ЕГРН не инициализирована. Файл с вложением ФССП %s не обработан.", file.getFileName()), new Exception());
                     }
+                default:
+                    // Преобразуем запрос в ClientMessage
+                    request.process();
+                    // Логируем результат обработки запроса в БД
+                    request.log();
+            }
+            // Если не выкинуто исключение, то переносим файл в каталог processed
+            // Перезаписываем существующий файл, потому что ИС УВ может посылать одинаковые файлы в разные дни
+            Path target = processedDir.resolve(file.getFileName());
+            try {
+                Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+                return true;
+            } catch (IOException e) {
+                LOG.error("Не получается переместить файл " + file.getFileName());
+            }
+        } catch (RequestException e) {
+            // Логируем исключение и переносим файл в каталог failed
+            LOG.error(e.getMessage());
+            // Запрос не отправлен, поэтому его номер возвращается
+            if (request != null) {
+                request.releaseIndex();
+            }
+            Path target = failedDir.resolve(file.getFileName());
+            try {
+                Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                LOG.error(String.format("Не удалось переместить файл %s в каталог failed", file.getFileName()));
+            }
+            // Очищаем каталог sign на всякий случай
+            clearSignDir();
+        } catch (OverlimitException e) {
+            // Запрос уже поставлен в overlimitBatch, файл будет перенесен в каталог overlimit после прохода
+        } catch (PacingException e) {
+            // Файл остается в каталоге requests и ждет своего времени в очереди, не разбираясь повторно
+            LOG.info(e.getMessage());
+            waitingQueue.hold(file, e.getDelay());
+        } catch (SignException e) {
+            if (request != null) {
+                request.releaseIndex();
+            }
+            // Пытаемся заново инициализировать подписи
+            restoreSigners();
+            // Файл, на котором было выброшено исключение, оставляется в папке requests
+            // и будет обработан при восстановлении подписей
+        } catch (ParsingException e) {
+            // Файл, который не удалось распарсить переносим в каталог failed
+            Path target = failedDir.resolve(file.getFileName());
+            try {
+                Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                LOG.error(String.format("Не удалось переместить файл %s в каталог failed", file.getFileName()));
+            }
+            // Очищаем каталог sign на всякий случай
+            clearSignDir();
+        }
+        return false;
+    }
+
+    /**
+     * Метод записывает накопленные за проход сверхлимитные запросы в лог одним пакетным запросом
+     * и переносит их файлы в каталог overlimit. Если записать лог не удалось, файлы переносятся в каталог failed,
+     * как раньше при ошибке записи отдельного сверхлимитного запроса.
+     */
+    private void flushOverlimit() {
+        if (overlimitBatch.isEmpty()) {
+            return;
+        }
+        List<OverlimitBatch.Entry> entries = overlimitBatch.drain();
+        // Запрос из очереди overlimit, которому не хватило лимита (его опередили новые запросы), уже записан в лог
+        // как OVERLIMIT, когда попал в очередь, поэтому повторно в лог не записывается
+        List<OverlimitBatch.Entry> newEntries = new ArrayList<>();
+        for (OverlimitBatch.Entry entry : entries) {
+            if (!entry.file.startsWith(overlimitDir)) {
+                newEntries.add(entry);
+            }
+        }
+        boolean isLogged = true;
+        try {
+            if (!newEntries.isEmpty()) {
+                dbConnection.logOverlimitRequests(newEntries);
+            }
+        } catch (SQLException e) {
+            LOG.error("Ошибка при записи в лог сверхлимитных запросов.");
+            LOG.error(e.getMessage());
+            isLogged = false;
+        }
+        int moved = 0;
+        for (OverlimitBatch.Entry entry : entries) {
+            Path targetDir = isLogged || entry.file.startsWith(overlimitDir) ? getOverlimitDir(entry.namespace) : failedDir;
+            try {
+                Files.createDirectories(targetDir);
+                // Перемещение сохраняет время изменения файла, поэтому в очереди сохраняется порядок поступления.
+                // Запрос из очереди, снова оказавшийся сверхлимитным, остается на своем месте.
+                Files.move(entry.file, targetDir.resolve(entry.file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                moved++;
+            } catch (IOException e) {
+                LOG.error(String.format("Не удалось переместить файл %s в каталог %s", entry.file.getFileName(), targetDir));
+            }
+        }
+        LOG.info(String.format("Перенесено %d сверхлимитных запросов из %d в каталог %s.", moved, entries.size(), isLogged ? overlimitDir : failedDir));
+    }
+
+    /**
+     * Метод возвращает каталог очереди сверхлимитных запросов вида сведений.
+     * Очередь каждого вида сведений - отдельный подкаталог overlimit, поэтому вид сведений запроса из очереди известен
+     * без разбора файла, а порядок поступления определяется временем изменения файлов.
+     *
+     * @param namespace Пространство имен вида сведений
+     * @return Подкаталог overlimit с именем, построенным из пространства имен (хэш исключает совпадение имен после замены символов)
+     */
+    private static Path getOverlimitDir(String namespace) {
+        return overlimitDir.resolve(namespace.replaceAll("[^A-Za-z0-9._-]", "_") + "_" + Integer.toHexString(namespace.hashCode()));
+    }
+
+    /**
+     * Метод выбирает из очередей overlimit самые старые запросы видов сведений, у которых остался суточный лимит.
+     * Из очереди вида сведений берется не больше запросов, чем позволяет лимит, а всего - не больше порции listChunkSize,
+     * поэтому после смены суток очередь возвращается в обработку постепенно, а не одним всплеском.
+     * Запросы, ожидающие своего времени по темпу отправки вида сведений, пропускаются.
+     * При планировании по крайнему сроку (SCHEDULING = EDF) первыми берутся виды сведений с самым коротким сроком
+     * ожидания ответа, а при равном сроке - с более высоким приоритетом.
+     *
+     * @return Запросы из очередей overlimit в порядке поступления с их видами сведений
+     */
+    private Map<Path, VSInfo> nextOverlimitChunk() {
+        Map<Path, VSInfo> replay = new LinkedHashMap<>();
+        List<VSInfo> vsInfos = new ArrayList<>();
+        for (Object value : vsInfoArray.getVSInfoSet().values()) {
+            vsInfos.add((VSInfo) value);
+        }
+        if (isDeadlineScheduling) {
+            // Все запросы из очереди получают крайний срок "сегодня + timeout", поэтому раньше всех истекает ВС с меньшим timeout
+            vsInfos.sort(Comparator.<VSInfo>comparingInt(vsInfo -> vsInfo.timeout)
+                    .thenComparingInt(vsInfo -> Integer.parseInt(vsInfo.priority)));
+        }
+        for (VSInfo vsInfo : vsInfos) {
+            int quota = Math.min(vsInfo.dailyLimit - vsCounter.get(vsInfo.namespace), listChunkSize - replay.size());
+            if (quota <= 0) {
+                continue;
+            }
+            Path queueDir = getOverlimitDir(vsInfo.namespace);
+            if (!Files.isDirectory(queueDir)) {
+                continue;
+            }
+            for (Path file : new DirectoryLister(queueDir, quota, waitingQueue::isDue).nextChunk()) {
+                replay.put(file, vsInfo);
+            }
+        }
+        if (!replay.isEmpty()) {
+            LOG.info(String.format("Из очереди overlimit в обработку возвращено %d запросов.", replay.size()));
+        }
+        return replay;
+    }
+
+    /**
+     * Метод заново инициализирует подписи ФНС и ЕГРН, если они не зарегистрированы.
+     * Синхронизирован, потому что SignException может одновременно возникнуть в нескольких рабочих потоках.
+     */
+    private synchronized void restoreSigners() {
+        if (!isFNSSignRegistered) {
+            try {
+                String fnsSignAlias = props.getProperty("FNS_SIGN_ALIAS");
+                String fnsSignPassword = props.getProperty("FNS_SIGN_PASSWORD");
+                if (!fnsSignAlias.isEmpty() && !fnsSignPassword.isEmpty()) {
+                    fnsSigner = new FNSSigner(fnsSignAlias, fnsSignPassword);
+                    isFNSSignRegistered = true;
+                    LOG.info("Зарегистрирована подпись ФНС.");
+                } else {
+                    LOG.error("В файле конфигурации не заданы псевдоним или пароль подписи ФНС.");
                 }
+            } catch (UnrecoverableKeyException | NoSuchAlgorithmException | KeyStoreException | CertificateException ex) {
+                isFNSSignRegistered = false;
+                LOG.error("Не удалось зарегистрировать подпись ФНС.");
+                LOG.error(ex.getMessage());
             }
-            LOG.info(String.format("Обработано %d запросов из %d.", filesNum, files.stream().toArray().length));
-            // После обработки всех файлов сохраняем счетчики в базе данных
+        }
+        if (!isEGRNSignRegistered) {
             try {
-                vsCounter.saveVSCounter(new Date(currentDate.getTimeInMillis()));
-            } catch (SQLException e) {
-                LOG.error(e.getSQLState());
+                String egrnSignAlias = props.getProperty("EGRN_SIGN_ALIAS");
+                String egrnSignPassword = props.getProperty("EGRN_SIGN_PASSWORD");
+                if (!egrnSignAlias.isEmpty() && !egrnSignPassword.isEmpty()) {
+                    egrnSigner = new EGRNSigner(egrnSignAlias, egrnSignPassword);
+                    isEGRNSignRegistered = true;
+                    LOG.info("Зарегистрирована подпись ЕГРН.");
+                } else {
+                    LOG.error("В файле конфигурации не заданы псевдоним или пароль подписи ЕГРН.");
+                }
+            } catch (UnrecoverableKeyException | NoSuchAlgorithmException | KeyStoreException | CertificateException ex) {
+                isEGRNSignRegistered = false;
+                LOG.error("Не удалось зарегистрировать подпись ЕГРН.");
+                LOG.error(ex.getMessage());
             }
         }
     }
@@ -417,7 +611,7 @@ public class RequestProcessor extends Thread {
     /**
      * Метод проверяет, не наступил ли новый день.
      * Если наступил, то счетчики запросов в базе данных на текущий день обнуляются,
-     * а сверхлимитные запросы предыдущего дня переносятся из каталога overlimited в каталог requests.
+     * а очереди сверхлимитных запросов предыдущего дня начинают постепенно возвращаться в обработку (см. nextOverlimitChunk).
      * Кроме того, запросы, для которых наступила timeout-дата переводятся в статус TIMEOUT
      */
     private void checkNewDay() {
@@ -448,20 +642,18 @@ public class RequestProcessor extends Thread {
             }
             LOG.info("Записи log перенесены в log_archive.");
             try {
-                // Если день поменялся, то:
-                // текущие счетчики сохраняются в базе данных
-                vsCounter.saveVSCounter(new Date(currentDate.getTimeInMillis()));
-                // счетчики обнуляются
-                vsCounter.clear();
+                // Если день поменялся, то текущие счетчики сохраняются в базе данных и обнуляются
+                vsCounter.rollOver(new Date(justMomentDate.getTimeInMillis()));
             } catch (Exception e) {
                 LOG.error("Ошибка при сохранении или очистке счетчиков запросов.");
                 LOG.error(e.getMessage());
             }
             LOG.info("Счетчики ВС обнулены.");
 
-            // Файлы с запросами переносятся из каталога overlimited в рабочий каталог
-            File[] overlimitedFiles = overlimitDir.toFile().listFiles();
-            if (overlimitedFiles != null) {
+            // Очереди видов сведений в подкаталогах overlimit возвращаются в обработку постепенно (см. nextOverlimitChunk).
+            // Файлы прежнего формата, лежащие прямо в каталоге overlimit, переносятся в рабочий каталог, как раньше.
+            File[] overlimitedFiles = overlimitDir.toFile().listFiles(File::isFile);
+            if (overlimitedFiles != null && overlimitedFiles.length > 0) {
                 for (File overlimitFile : overlimitedFiles) {
                     Path target = inputDir.resolve(overlimitFile.toPath().getFileName());
                     try {
@@ -481,11 +673,33 @@ public class RequestProcessor extends Thread {
     }
 
     /**
-     * Метод очищает каталог sign после обработки запросов с подписями или после исключения RequestException
+     * Метод возвращает подкаталог sign текущего рабочего потока, при необходимости создавая его.
+     * Файлы request.xml, подписи и архивы параллельно обрабатываемых запросов не должны
+     * перезаписывать и удалять друг друга, поэтому каждый поток работает в своем подкаталоге.
+     *
+     * @return Каталог для подписей текущего потока
+     */
+    public static Path getSignDir() {
+        Path dir = workerSignDir.get();
+        if (dir == null) {
+            dir = signDir.resolve(Thread.currentThread().getName());
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException e) {
+                LOG.error(String.format("Не удалось создать каталог %s.", dir));
+                LOG.error(e.getMessage());
+            }
+            workerSignDir.set(dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Метод очищает каталог sign текущего потока после обработки запросов с подписями или после исключения RequestException
      */
     public static void clearSignDir() {
-        File[] signedFiles = signDir.toFile().listFiles();
-        if (signedFiles != null && signedFiles.length == 0) {
+        File[] signedFiles = getSignDir().toFile().listFiles();
+        if (signedFiles == null || signedFiles.length == 0) {
             return;
         }
         // Хранилище для проблемных файлов
@@ -512,38 +726,4 @@ public class RequestProcessor extends Thread {
             deniedFiles.clear();
         }
     }
-
-    /**
-     * Метод пытается открыть файл на чтение, и если это не получается, то возвращается false.
-     * Иначе возвращается true.
-     *
-     * @param file Проверяемый файл
-     * @return true, если файл получилось открыть на чтение, и false в противном случае.
-     */
-    private boolean isFileAccessible(File file) {
-        try {
-            FileInputStream fis = new FileInputStream(file);
-            fis.close();
-            return true;
-        } catch (IOException e) {
-            LOG.info(String.format("Файл %s недоступен для чтения.", file.getName()));
-            return false;
-        }
-    }
-
-    /**
-     * Метод возвращает набор путей к файлам, находящимся в каталоге inputDir
-     * Из набора исключаются файлы, которые являются каталогами
-     * @return Set<Path> Набор файлов в каталоге с входящими запросами
-     */
-    private Set<Path> getFileList() {
-        try (Stream<Path> stream = Files.list(inputDir)) {
-            return stream
-                    .filter(file -> !Files.isDirectory(file))
-                    .collect(Collectors.toSet());
-        } catch (IOException e) {
-            LOG.error(e.getMessage());
-            throw new RuntimeException(e);
-        }
-    }
 }
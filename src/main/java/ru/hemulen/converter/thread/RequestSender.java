@@ -3,15 +3,20 @@ package ru.hemulen.converter.thread;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.hemulen.converter.messages.VSInfoArray;
+import ru.hemulen.converter.utils.DirectoryWatcher;
+import ru.hemulen.converter.utils.PreparedQueue;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.*;
 
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.attribute.PosixFilePermission.OWNER_READ;
 import static java.nio.file.attribute.PosixFilePermission.OWNER_WRITE;
 import static java.nio.file.attribute.PosixFilePermission.OWNER_EXECUTE;
@@ -22,87 +27,217 @@ import static java.nio.file.attribute.PosixFilePermission.OTHERS_READ;
 import static java.nio.file.attribute.PosixFilePermission.OTHERS_WRITE;
 import static java.nio.file.attribute.PosixFilePermission.OTHERS_EXECUTE;
 
+/**
+ * Поток переносит подготовленные запросы из очереди отправки (RequestProcessor.preparedQueue) в каталог OUT адаптера.
+ * В каталоге OUT одновременно находится не больше SEND_WINDOW запросов (окно отправки), и окно пополняется
+ * по мере того, как адаптер забирает запросы, поэтому адаптер не простаивает и не получает всю очередь разом.
+ * Свободные места окна распределяются между приоритетами взвешенно-справедливо (SCHEDULING = PRIORITY)
+ * или по крайнему сроку запросов (SCHEDULING = EDF).
+ * <p>
+ * Поток не опрашивает каталоги в цикле, а ждет событий: RequestProcessor сообщает о каждом подготовленном запросе
+ * (метод signal), а WatchService - о том, что адаптер забрал файлы из каталога OUT (ENTRY_DELETE; собственные
+ * файлы потока в OUT событий не вызывают). Пока событий нет, поток спит;
+ * пересканирование по таймеру RESCAN_FREQ остается страховкой на случай потерянного события.
+ */
 public class RequestSender extends Thread {
     private static Logger LOG = LoggerFactory.getLogger(RequestSender.class.getName());
     private Boolean isRunnable;     // Признак включения потока
-    private Path preparedDir;       // Каталог, в котором лежат подкаталоги по приоритетам отправляемых запросов
     private Path outputDir;         // Каталог OUT адаптера
+    private int window;             // Максимальное количество запросов, одновременно ожидающих адаптер в каталоге OUT
+    private long idleTime;          // Максимальное время ожидания события, если окно заполнено или отправлять нечего
+    private static volatile DirectoryWatcher watcher;   // Ожидание событий каталога OUT и сигналов о новых подготовленных запросах
+    private double virtualTime;     // Виртуальное время взвешенной очереди: момент начала последней отправки
+    private Map<Integer, Double> finishTimes = new HashMap<>();  // Виртуальное время окончания последней отправки каждого приоритета
 
     public RequestSender(Properties props) {
         // Устанавливаем имя потока
         setName("RequestSenderThread");
         // Запуск процесса настраивается в конфигурации
         isRunnable = Boolean.parseBoolean(props.getProperty("REQUEST_SENDER"));
-        preparedDir = Paths.get(props.getProperty("EXCHANGE_PATH")).resolve("prepared");
         outputDir = Paths.get(props.getProperty("INTEGRATION_OUT"));
+        window = Math.max(Integer.parseInt(props.getProperty("SEND_WINDOW", "100").trim()), 1);
+        watcher = new DirectoryWatcher("RequestSenderWatcherThread", new WatchEvent.Kind<?>[]{ENTRY_DELETE}, outputDir);
+        // Без WatchService освобождение окна замечается только опросом, поэтому опрашиваем каталог OUT раз в секунду, как раньше
+        idleTime = watcher.isWatching() ? Long.parseLong(props.getProperty("RESCAN_FREQ", "60000").trim()) : 1000;
         LOG.info("Инициализированы каталог подготовленных запросов и каталог отправки адаптера.");
-        LOG.info("RequestSender инициализирован.");
+        LOG.info(String.format("RequestSender инициализирован, окно отправки %d запросов.", window));
     }
 
     public void run() {
         while (isRunnable) {
-            // Общее количество приоритетов определяется при загрузке файла VSInfoArray.xml в классе RequestProcessor.
-            // Это глобальная статическая переменная, которая при старте RequestSender может быть еще равна нулю.
-            // В этом случае следующий цикл не выполнится, но будет продолжаться внешний, пока maxPriority не станет больше единицы.
-            for (int i = 1; i <= VSInfoArray.maxPriority; i++) {
-                // Обработка очередного приоритета начинается только тогда, когда каталог out пуст
-                // Поэтому ждем, когда он освободится, а потом отправляем очередной приоритет
-                while (!isOutputEmpty()) {
-                    try {
-                        sleep(1000);
-                    } catch (InterruptedException e) {
-                        LOG.error(e.getMessage());
-                    }
+            // Досылаем запросы на места, которые освободил адаптер
+            int free = window - countOutput();
+            int sent = 0;
+            if (free > 0) {
+                // Режим планирования определяет RequestProcessor: в том же порядке упорядочена очередь отправки
+                sent = RequestProcessor.isDeadlineScheduling ? sendEarliestDeadlines(free) : sendWeightedFair(free);
+                if (RequestProcessor.backpressure != null) {
+                    // Темп, с которым адаптер забирает запросы, определяет, насколько откладывается прием новых
+                    RequestProcessor.backpressure.drained(sent);
+                }
+            }
+            if (sent < free || free <= 0) {
+                // Окно заполнено или отправлять больше нечего - ждем, пока адаптер заберет файл или появится новый запрос
+                try {
+                    watcher.await(idleTime);
+                } catch (InterruptedException e) {
+                    LOG.error(e.getMessage());
                 }
-                sendPriority(i);
             }
         }
+        watcher.close();
     }
 
-    private void sendPriority(int priority) {
-        Path priorityDir = preparedDir.resolve(Integer.toString(priority));
-        if (!priorityDir.toFile().exists()) {
-            return; // Нет каталога - нечего обрабатывать
-        }
-        File[] files = priorityDir.toFile().listFiles();
-        if (files.length == 0) {
-            return; // Каталог есть, но он пустой
+    /**
+     * Метод будит поток отправки: вызывается, когда в каталоге prepared появился подготовленный запрос
+     */
+    public static void signal() {
+        DirectoryWatcher current = watcher;
+        if (current != null) {
+            current.wakeUp();
         }
-        // Создаем хранилище для проблемных файлов
-        List<File> deniedFiles = new LinkedList<>();
-        // Обрабатываем текущий список файлов
-        for (File file : files) {
-            Path source = file.toPath();
-            Path target = outputDir.resolve(file.toPath().getFileName());
-            try {
-                Files.move(source, target);
-                SetPermissions(target); // Явно прописываем права доступа, чтобы адаптер смог прочитать наш запрос
-            } catch (IOException e) {
-                // Собираем в кучку файлы, которые не удалось переместить с первого раза
-                deniedFiles.add(file);
+    }
+
+    /**
+     * Метод отправляет до limit запросов, распределяя их между приоритетами по алгоритму взвешенной справедливой очереди.
+     * Вес приоритета тем больше, чем меньше его номер (maxPriority + 1 - приоритет), и каждый непустой приоритет получает
+     * долю отправок, пропорциональную своему весу. Поэтому длинная очередь низкого приоритета не задерживает высокий,
+     * а запросы чуть более низких приоритетов не ждут, пока опустеют все более высокие.
+     * Приоритет, который простаивал, не накапливает долю: его отсчет начинается с текущего виртуального времени.
+     *
+     * @param limit Количество свободных мест в окне отправки
+     * @return Количество отправленных запросов
+     */
+    private int sendWeightedFair(int limit) {
+        int sent = 0;
+        while (sent < limit) {
+            Map<Integer, PreparedQueue.Entry> heads = RequestProcessor.preparedQueue.heads();
+            if (heads.isEmpty()) {
+                break;
             }
+            // Выбираем приоритет с наименьшим временем начала очередной отправки (при равенстве - с меньшим номером)
+            int chosen = 0;
+            double chosenStart = Double.MAX_VALUE;
+            for (Integer priority : heads.keySet()) {
+                double start = Math.max(finishTimes.getOrDefault(priority, 0.0), virtualTime);
+                if (start < chosenStart) {
+                    chosen = priority;
+                    chosenStart = start;
+                }
+            }
+            SendResult result = send(heads.get(chosen));
+            if (result == SendResult.RETRY) {
+                break;
+            }
+            if (result == SendResult.DROPPED) {
+                // Место в окне не занято, и доля приоритета не расходуется
+                continue;
+            }
+            sent++;
+            virtualTime = chosenStart;
+            finishTimes.put(chosen, chosenStart + 1.0 / Math.max(VSInfoArray.maxPriority + 1 - chosen, 1));
         }
-        // Теперь обрабатываем проблемные файлы
-        if (!deniedFiles.isEmpty()) {
-            for (File file : deniedFiles) {
-                Path source = file.toPath();
-                Path target = outputDir.resolve(file.toPath().getFileName());
-                try {
-                    Files.move(source, target);
-                } catch (IOException e) {
-                    LOG.info(String.format("Не удалось переместить файл %s из %s в %s.", file.getName(), file.getParent(), outputDir.toString()));
-                    // Файл остается в текущем каталоге до следующего прохода цикла в RequestSender.run()
+        if (sent > 0) {
+            LOG.info(String.format("Отправлено %d запросов.", sent));
+        }
+        return sent;
+    }
+
+    /**
+     * Метод отправляет limit запросов с самыми ранними крайними сроками, при равном сроке - запросы с более высоким
+     * приоритетом (меньшим номером). Очередь каждого приоритета упорядочена по крайнему сроку,
+     * поэтому достаточно сравнить первые запросы приоритетов.
+     *
+     * @param limit Количество свободных мест в окне отправки
+     * @return Количество отправленных запросов
+     */
+    private int sendEarliestDeadlines(int limit) {
+        int sent = 0;
+        while (sent < limit) {
+            PreparedQueue.Entry earliest = null;
+            // Первые запросы перебираются по возрастанию номера приоритета, поэтому при равном сроке остается более высокий
+            for (PreparedQueue.Entry head : RequestProcessor.preparedQueue.heads().values()) {
+                if (earliest == null || head.deadline < earliest.deadline) {
+                    earliest = head;
                 }
             }
-            deniedFiles.clear();
+            if (earliest == null) {
+                break;
+            }
+            SendResult result = send(earliest);
+            if (result == SendResult.RETRY) {
+                break;
+            }
+            if (result == SendResult.SENT) {
+                sent++;
+            }
+        }
+        if (sent > 0) {
+            LOG.info(String.format("Отправлено %d запросов с самыми ранними крайними сроками.", sent));
+        }
+        return sent;
+    }
+
+    /**
+     * Метод переносит подготовленный запрос в каталог OUT адаптера и убирает его из очереди.
+     * Запрос, файл которого исчез из каталога prepared, убирается из очереди без отправки.
+     *
+     * @param entry Запрос из очереди
+     * @return SENT - запрос отправлен, DROPPED - запрос без файла убран из очереди, RETRY - запрос остается до следующего прохода
+     */
+    private SendResult send(PreparedQueue.Entry entry) {
+        Path source = RequestProcessor.preparedQueue.resolve(entry);
+        Path target = outputDir.resolve(source.getFileName());
+        SendResult result = SendResult.SENT;
+        try {
+            Files.move(source, target);
+            SetPermissions(target); // Явно прописываем права доступа, чтобы адаптер смог прочитать наш запрос
+        } catch (NoSuchFileException e) {
+            LOG.error(String.format("Файл %s из очереди отправки не найден в %s.", source.getFileName(), source.getParent()));
+            // Адаптеру ничего не передано, поэтому запрос не учитывается в темпе отправки
+            result = SendResult.DROPPED;
+        } catch (IOException e) {
+            LOG.info(String.format("Не удалось переместить файл %s из %s в %s.", source.getFileName(), source.getParent(), outputDir.toString()));
+            // Запрос остается в очереди до следующего прохода цикла в RequestSender.run()
+            return SendResult.RETRY;
+        }
+        try {
+            RequestProcessor.preparedQueue.remove(entry);
+        } catch (IOException e) {
+            // Запрос уже отправлен; при восстановлении очереди он будет отброшен, потому что его файла больше нет
+            LOG.error(String.format("Не удалось записать отправку запроса %s в журнал очереди.", source.getFileName()));
+            LOG.error(e.getMessage());
         }
-        LOG.info(String.format("Отправлены запросы %d приоритета.", priority));
+        return result;
     }
 
-    private boolean isOutputEmpty() {
-        File[] files = outputDir.toFile().listFiles();
-        // В каталоге out еще два подкаталога - sent и error
-        return files.length <= 2;
+    /**
+     * Результат попытки отправить запрос из очереди
+     */
+    private enum SendResult {
+        SENT,       // Файл перенесен в каталог OUT
+        DROPPED,    // Файла нет, запрос убран из очереди без отправки
+        RETRY       // Файл не перенесен, запрос остается в очереди
+    }
+
+    /**
+     * Метод возвращает количество запросов, которые еще не забрал адаптер (подкаталоги sent и error не считаются)
+     */
+    private int countOutput() {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(outputDir)) {
+            for (Path path : stream) {
+                if (!Files.isDirectory(path)) {
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            LOG.error(String.format("Не удалось прочитать каталог %s.", outputDir));
+            LOG.error(e.getMessage());
+            // Не зная заполненности окна, ничего не отправляем
+            return window;
+        }
+        return count;
     }
 
     /**
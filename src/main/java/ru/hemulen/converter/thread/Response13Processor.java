@@ -7,15 +7,19 @@ import ru.hemulen.converter.exceptions.AttachmentException;
 import ru.hemulen.converter.exceptions.ParsingException;
 import ru.hemulen.converter.exceptions.ResponseException;
 import ru.hemulen.converter.messages.Response;
+import ru.hemulen.converter.utils.DirectoryLister;
+import ru.hemulen.converter.utils.DirectoryWatcher;
+import ru.hemulen.converter.utils.FileReadinessDetector;
+import ru.hemulen.converter.utils.RetryScheduler;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -27,9 +31,13 @@ import java.util.Properties;
  */
 public class Response13Processor extends Thread {
     private static Logger LOG = LoggerFactory.getLogger(Response13Processor.class.getName());
-    public static ConverterDB dbConnection;  // Отдельное подключение к БД PostgreSQL для обработчика ответов
+    public static ConverterDB dbConnection;  // Доступ к БД PostgreSQL для обработчика ответов (соединения берутся из общего пула)
     private Boolean isRunnable;     // Признак, что процесс продолжает работать
     private long sleepTime;         // Время задержки перед следующим опросом каталога, если он оказывается пуст
+    private long rescanTime;        // Интервал контрольного пересканирования каталога, если работает WatchService
+    private DirectoryLister lister; // Источник порций файлов каталога IN в порядке поступления
+    private FileReadinessDetector readinessDetector;    // Отсеивает еще не дописанные адаптером файлы ответов
+    private RetryScheduler retryScheduler;  // Откладывает ответы, которые не удалось распарсить или у которых еще нет вложений
     public static Path inputDir;    // Каталог, в который адаптер помещает ответы СМЭВ (IN)
     public static Path attachmentDir;      // Каталог, в который адаптер помещает файлы вложений
     public static Path outputDir;   // Каталог, из которого ответы забирает ИС УВ (responses)
@@ -49,8 +57,15 @@ public class Response13Processor extends Thread {
         LOG.info("Создано подключение к PostgreSQL.");
         // Частота опроса каталога IN
         sleepTime = Long.parseLong(props.getProperty("RESPONSE_FREQ"));
+        rescanTime = Long.parseLong(props.getProperty("RESCAN_FREQ", "60000").trim());
         // Настраиваем каталоги
         inputDir = Paths.get(props.getProperty("INTEGRATION_IN_13"));
+        readinessDetector = new FileReadinessDetector(Long.parseLong(props.getProperty("FILE_SETTLE_TIME", "2000").trim()));
+        retryScheduler = new RetryScheduler(Long.parseLong(props.getProperty("RETRY_DELAY", "30000").trim()),
+                Long.parseLong(props.getProperty("RETRY_MAX_DELAY", "3600000").trim()),
+                Integer.parseInt(props.getProperty("RETRY_MAX_ATTEMPTS", "10").trim()));
+        lister = new DirectoryLister(inputDir, Integer.parseInt(props.getProperty("LIST_CHUNK_SIZE", "1000").trim()),
+                (path, attributes) -> readinessDetector.isReady(path, attributes) && retryScheduler.isDue(path, attributes));
         attachmentDir = Paths.get(props.getProperty("BASE_ATTACHMENT_IN_13"));
         outputDir = Paths.get(props.getProperty("EXCHANGE_PATH"), "responses");
         requestsDir = Paths.get(props.getProperty("EXCHANGE_PATH"), "requests");
@@ -93,113 +108,120 @@ public class Response13Processor extends Thread {
 
     @Override
     public void run() {
+        // Новые ответы в каталоге IN второго instance будят поток сразу, а пересканирование по таймеру остается страховкой
+        DirectoryWatcher watcher = new DirectoryWatcher("Response13WatcherThread", inputDir);
+        long idleTime = watcher.isWatching() ? rescanTime : sleepTime;
         while (isRunnable) {
-            // Читаем файлы в каталоге ответов
-            File[] files = inputDir.toFile().listFiles();
-            //LOG.info(String.format("Количество элементов (включая подкаталоги) в IN: %d.", files.length));
-            if (files.length <= 2) {
-                // Каталог пуст, не считая подкаталогов processed и failed - спим какое-то время и снова опрашиваем каталог
+            // Читаем очередную порцию самых старых файлов в каталоге ответов
+            List<Path> files = lister.nextChunk();
+            if (files.isEmpty()) {
+                // Каталог пуст, не считая подкаталогов processed и failed - ждем новый ответ и снова опрашиваем каталог
                 try {
                     LOG.info("Ответы в адаптере 1.3 отсутствуют.");
-                    sleep(sleepTime);
+                    // Если в каталоге есть недописанные или отложенные файлы, просыпаемся к моменту их готовности
+                    watcher.await(Math.min(idleTime, Math.min(readinessDetector.getPendingDelay(), retryScheduler.getPendingDelay())));
                 } catch (InterruptedException e) {
                     LOG.error(e.getMessage());
                 }
                 continue;
             }
             int filesNum = 0; // Счетчик ответов
-            for (File file : files) {
-                if (!file.isDirectory() && isFileAccessible(file)) {
-                    // Создаем объект Response
+            for (Path path : files) {
+                File file = path.toFile();
+                // Создаем объект Response
+                try {
+                    Response response = new Response(file);
+                    // Определяем тип ответа
+                    String responseType = response.getType();
+                    switch (responseType) {
+                        case "PrimaryMessage":
+                            // Извлекаем из конверта бизнес-сообщение и сохраняем его в файл в каталоге responses
+                            response.processPrimaryMessage();
+                            // Логируем получение ответа в базе данных
+                            response.logAnswer();
+                            break;
+                        case "StatusMessage":
+                            // Логируем статус запроса в базе данных
+                            response.logStatus();
+                            break;
+                        case "BusinessStatus":
+                            // Считываем бизнес-статус
+                            response.processBusinessStatus();
+                            // Логируем статус BUSINESS
+                            response.logBusinessStatus();
+                            break;
+                        case "ErrorMessage":
+                            // Выбираем из сообщения источник, код и описание ошибки
+                            response.processErrorMessage();
+                            // Логируем статус FAILED и описание ошибки в базе данных
+                            response.logError();
+                            // Перемещаем соответствующий запрос в каталог error
+                            response.moveRequest();
+                            break;
+                        case "RejectMessage":
+                            // Выбираем из сообщения информацию об отказе
+                            response.processRejectMessage();
+                            // Логируем статус REJECTED и описание причин отказа в базе данных
+                            response.logReject();
+                            break;
+                        default:
+                            // Не удалось определить статус ответа
+                            // Выкидываем исключение и помещаем ответ в failed для последующего разбора
+                            throw new ResponseException("Неизвестный тип ответа " + file.getName(), new Exception());
+                    }
+                    // Перемещаем обработанный ответ в каталог processed
+                    Path target = processedDir.resolve(file.toPath().getFileName());
+                    Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+                    retryScheduler.forget(path);
+                    filesNum++; // Увеличиваем счетчик ответов
+                } catch (ResponseException | SQLException e) {
+                    LOG.error(e.getMessage());
+                    LOG.info(String.format("Не удалось обработать ответ %s.", file.getName()));
+                    retryScheduler.forget(path);
+                    // Перемещаем файл с ответом, вызвавший исключение, в каталог failed
+                    Path target = failedDir.resolve(file.toPath().getFileName());
                     try {
-                        Response response = new Response(file);
-                        // Определяем тип ответа
-                        String responseType = response.getType();
-                        switch (responseType) {
-                            case "PrimaryMessage":
-                                // Извлекаем из конверта бизнес-сообщение и сохраняем его в файл в каталоге responses
-                                response.processPrimaryMessage();
-                                // Логируем получение ответа в базе данных
-                                response.logAnswer();
-                                break;
-                            case "StatusMessage":
-                                // Логируем статус запроса в базе данных
-                                response.logStatus();
-                                break;
-                            case "BusinessStatus":
-                                // Считываем бизнес-статус
-                                response.processBusinessStatus();
-                                // Логируем статус BUSINESS
-                                response.logBusinessStatus();
-                                break;
-                            case "ErrorMessage":
-                                // Выбираем из сообщения источник, код и описание ошибки
-                                response.processErrorMessage();
-                                // Логируем статус FAILED и описание ошибки в базе данных
-                                response.logError();
-                                // Перемещаем соответствующий запрос в каталог error
-                                response.moveRequest();
-                                break;
-                            case "RejectMessage":
-                                // Выбираем из сообщения информацию об отказе
-                                response.processRejectMessage();
-                                // Логируем статус REJECTED и описание причин отказа в базе данных
-                                response.logReject();
-                                break;
-                            default:
-                                // Не удалось определить статус ответа
-                                // Выкидываем исключение и помещаем ответ в failed для последующего разбора
-                                throw new ResponseException("Неизвестный тип ответа " + file.getName(), new Exception());
-                        }
-                        // Перемещаем обработанный ответ в каталог processed
-                        Path target = processedDir.resolve(file.toPath().getFileName());
                         Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
-                        filesNum++; // Увеличиваем счетчик ответов
-                    } catch (ResponseException | SQLException e) {
-                        LOG.error(e.getMessage());
-                        LOG.info(String.format("Не удалось обработать ответ %s.", file.getName()));
-                        // Перемещаем файл с ответом, вызвавший исключение, в каталог failed
-                        Path target = failedDir.resolve(file.toPath().getFileName());
-                        try {
-                            Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
-                        } catch (IOException ex) {
-                            LOG.error(e.getMessage());
-                            LOG.info(String.format("Не удалось переместить файл %s в каталог failed.", file.getName()));
-                        }
-                    } catch (IOException e) {
+                    } catch (IOException ex) {
                         LOG.error(e.getMessage());
-                        LOG.info(String.format("Произошла ошибка ввода-вывода при обработке ответа %s.", file.getName()));
-                    } catch (ParsingException e) {
-                        // Это исключение возникает в случае, если пытались парсить не до конца скопированный файл
-                        LOG.info(String.format("Не удалось распарсить ответ %s. Ответ будет обработан в следующем цикле.", file.getName()));
-                        // Больше ничего не делаем и оставляем файл ответа в каталоге IN до следующего цикла.
-                    } catch (AttachmentException e) {
-                        // Это исключение возникает, когда адаптер не успел обработать (сохранить) вложения, на которые
-                        // ссылается обрабатываемый ответ.
-                        LOG.info(String.format("Нулевой размер файла с архивом, полученном при обработке ответа %s. Ответ будет обработан в следующем цикле.", file.getName()));
-                        // Больше ничего не делаем и оставляем файл ответа в каталоге IN до следующего цикла.
+                        LOG.info(String.format("Не удалось переместить файл %s в каталог failed.", file.getName()));
                     }
+                } catch (IOException e) {
+                    LOG.error(e.getMessage());
+                    LOG.info(String.format("Произошла ошибка ввода-вывода при обработке ответа %s.", file.getName()));
+                } catch (ParsingException e) {
+                    // Это исключение возникает в случае, если пытались парсить не до конца скопированный файл
+                    postpone(path, String.format("Не удалось распарсить ответ %s.", file.getName()));
+                } catch (AttachmentException e) {
+                    // Это исключение возникает, когда адаптер не успел обработать (сохранить) вложения, на которые
+                    // ссылается обрабатываемый ответ.
+                    postpone(path, String.format("Нулевой размер файла с архивом, полученном при обработке ответа %s.", file.getName()));
                 }
             }
-            LOG.info(String.format("Обработано %d ответов из %d (адаптер 1.3).", filesNum, files.length-2));
+            LOG.info(String.format("Обработано %d ответов из %d (адаптер 1.3).", filesNum, files.size()));
         }
+        watcher.close();
     }
 
     /**
-     * Метод пытается открыть файл на чтение, и если это не получается, то возвращается false.
-     * Иначе возвращается true.
-     * @param file Проверяемый файл
-     * @return true, если файл получилось открыть на чтение, и false в противном случае.
+     * Метод откладывает повторную обработку ответа, оставляя его в каталоге IN.
+     * Если попытки исчерпаны, ответ перемещается в каталог failed для последующего разбора.
+     *
+     * @param file   Файл ответа
+     * @param reason Причина, по которой ответ не удалось обработать
      */
-    private boolean isFileAccessible(File file) {
+    private void postpone(Path file, String reason) {
+        int attempt = retryScheduler.getAttempt(file);
+        if (retryScheduler.scheduleRetry(file)) {
+            LOG.info(String.format("%s Ответ будет обработан повторно (попытка %d из %d).", reason, attempt + 1, retryScheduler.getMaxAttempts()));
+            return;
+        }
+        LOG.error(String.format("%s Попытки обработки исчерпаны (%d), ответ перемещается в каталог failed.", reason, attempt));
         try {
-            FileInputStream fis = new FileInputStream(file);
-            fis.close();
-            return true;
+            Files.move(file, failedDir.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
-            LOG.info(String.format("Файл %s недоступен для чтения.", file.getName()));
-            return false;
+            LOG.error(e.getMessage());
+            LOG.info(String.format("Не удалось переместить файл %s в каталог failed.", file.getFileName()));
         }
     }
-
 }
@@ -7,20 +7,19 @@ import ru.hemulen.converter.exceptions.AttachmentException;
 import ru.hemulen.converter.exceptions.ParsingException;
 import ru.hemulen.converter.exceptions.ResponseException;
 import ru.hemulen.converter.messages.Response;
+import ru.hemulen.converter.utils.DirectoryLister;
+import ru.hemulen.converter.utils.DirectoryWatcher;
+import ru.hemulen.converter.utils.FileReadinessDetector;
+import ru.hemulen.converter.utils.RetryScheduler;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
-import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Класс выполняет сканирование каталога с ответами адаптера, определенного в параметре INTEGRATION_IN конфигурации.
@@ -31,9 +30,13 @@ import java.util.stream.Stream;
  */
 public class ResponseProcessor extends Thread {
     private static Logger LOG = LoggerFactory.getLogger(ResponseProcessor.class.getName());
-    public static ConverterDB dbConnection;  // Отдельное подключение к БД PostgreSQL для обработчика ответов
+    public static ConverterDB dbConnection;  // Доступ к БД PostgreSQL для обработчика ответов (соединения берутся из общего пула)
     private Boolean isRunnable;
     private long sleepTime;         // Время задержки перед следующим опросом каталога, если он оказывается пуст
+    private long rescanTime;        // Интервал контрольного пересканирования каталога, если работает WatchService
+    private DirectoryLister lister; // Источник порций файлов каталога IN в порядке поступления
+    private FileReadinessDetector readinessDetector;    // Отсеивает еще не дописанные адаптером файлы ответов
+    private RetryScheduler retryScheduler;  // Откладывает ответы, которые не удалось распарсить или у которых еще нет вложений
     public static Path inputDir;          // Каталог, в который адаптер помещает ответы СМЭВ (IN)
     private Path inputDir13;        // Каталог, в который второй instance адаптера помещает ответы СМЭВ (IN)
     public static Path attachmentDir;      // Каталог, в который адаптер помещает файлы вложений
@@ -56,7 +59,14 @@ public class ResponseProcessor extends Thread {
         LOG.info("Создано подключение к PostgreSQL.");
         // Частота опроса каталога IN
         sleepTime = Long.parseLong(props.getProperty("RESPONSE_FREQ"));
+        rescanTime = Long.parseLong(props.getProperty("RESCAN_FREQ", "60000").trim());
         inputDir = Paths.get(props.getProperty("INTEGRATION_IN"));
+        readinessDetector = new FileReadinessDetector(Long.parseLong(props.getProperty("FILE_SETTLE_TIME", "2000").trim()));
+        retryScheduler = new RetryScheduler(Long.parseLong(props.getProperty("RETRY_DELAY", "30000").trim()),
+                Long.parseLong(props.getProperty("RETRY_MAX_DELAY", "3600000").trim()),
+                Integer.parseInt(props.getProperty("RETRY_MAX_ATTEMPTS", "10").trim()));
+        lister = new DirectoryLister(inputDir, Integer.parseInt(props.getProperty("LIST_CHUNK_SIZE", "1000").trim()),
+                (path, attributes) -> readinessDetector.isReady(path, attributes) && retryScheduler.isDue(path, attributes));
         integrationOut = Paths.get(props.getProperty("INTEGRATION_OUT"));
         inputDir13 = Paths.get(props.getProperty("INTEGRATION_IN_13"));
         attachmentDir = Paths.get(props.getProperty("BASE_ATTACHMENT_IN"));
@@ -103,138 +113,127 @@ public class ResponseProcessor extends Thread {
     @Override
     public void run() {
         //LOG.info(String.format("Параметр запуска потока isRunnable: %s.", Boolean.toString(isRunnable)));
+        // Новые ответы в каталоге IN будят поток сразу, а пересканирование по таймеру остается страховкой
+        DirectoryWatcher watcher = new DirectoryWatcher("ResponseWatcherThread", inputDir);
+        long idleTime = watcher.isWatching() ? rescanTime : sleepTime;
         while (isRunnable) {
-            // Читаем файлы в каталоге ответов
-            Set<Path> files = getFileList();
+            // Читаем очередную порцию самых старых файлов в каталоге ответов
+            List<Path> files = lister.nextChunk();
             //LOG.info(String.format("Количество элементов (включая подкаталоги) в IN: %d.", files.length));
             if (files.isEmpty()) {
-                // Каталог пуст, не считая подкаталогов processed и failed - спим какое-то время и снова опрашиваем каталог
+                // Каталог пуст, не считая подкаталогов processed и failed - ждем новый ответ и снова опрашиваем каталог
                 try {
                     LOG.info("Ответы отсутствуют.");
-                    sleep(sleepTime);
+                    // Если в каталоге есть недописанные или отложенные файлы, просыпаемся к моменту их готовности
+                    watcher.await(Math.min(idleTime, Math.min(readinessDetector.getPendingDelay(), retryScheduler.getPendingDelay())));
                 } catch (InterruptedException e) {
                     LOG.error(e.getMessage());
                 }
                 continue;
             }
-            Iterator<Path> iterator = files.iterator();
             int filesNum = 0; // Счетчик ответов
-            while (iterator.hasNext()) {
-                Path file = iterator.next();
-                if (isFileAccessible(file.toFile())) {
-                    // Создаем объект Response
+            for (Path file : files) {
+                // Создаем объект Response
+                try {
+                    Response response = new Response(file.toFile());
+                    // Определяем тип ответа
+                    String responseType = response.getType();
+                    switch (responseType) {
+                        case "PrimaryMessage":
+                            // Извлекаем из конверта бизнес-сообщение и сохраняем его в файл в каталоге responses
+                            response.processPrimaryMessage();
+                            // Логируем получение ответа в базе данных
+                            response.logAnswer();
+                            break;
+                        case "StatusMessage":
+                            // Логируем статус запроса в базе данных
+                            response.logStatus();
+                            break;
+                        case "BusinessStatus":
+                            // Считываем бизнес-статус
+                            response.processBusinessStatus();
+                            // Логируем статус BUSINESS
+                            response.logBusinessStatus();
+                            break;
+                        case "ErrorMessage":
+                            // Выбираем из сообщения источник, код и описание ошибки
+                            response.processErrorMessage();
+                            // Логируем статус FAILED и описание ошибки в базе данных
+                            response.logError();
+                            // Перемещаем соответствующий запрос в каталог error
+                            response.moveRequest();
+                            break;
+                        case "RejectMessage":
+                            // Выбираем из сообщения информацию об отказе
+                            response.processRejectMessage();
+                            // Логируем статус REJECTED и описание причин отказа в базе данных
+                            response.logReject();
+                            break;
+                        case "FSSPRequest":
+                            response.processFSSPRequest();
+                            break;
+                        case "FSSPBusinessStatus":
+                            response.processFSSPResponse();
+                            break;
+                        default:
+                            // Не удалось определить статус ответа
+                            // Выкидываем исключение и помещаем ответ в failed для последующего разбора
+                            throw new ResponseException("Неизвестный тип ответа " + file.getFileName(), new Exception());
+                    }
+                    // Перемещаем обработанный ответ в каталог processed
+                    Path target = processedDir.resolve(file.getFileName());
+                    Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+                    retryScheduler.forget(file);
+                    filesNum++; // Увеличиваем счетчик ответов
+                } catch (ResponseException | SQLException e) {
+                    LOG.error(e.getMessage());
+                    LOG.info(String.format("Не удалось обработать ответ %s.", file.getFileName()));
+
+                    retryScheduler.forget(file);
+                    // Перемещаем файл с ответом, вызвавший исключение, в каталог failed
+                    Path target = failedDir.resolve(file.getFileName());
                     try {
-                        Response response = new Response(file.toFile());
-                        // Определяем тип ответа
-                        String responseType = response.getType();
-                        switch (responseType) {
-                            case "PrimaryMessage":
-                                // Извлекаем из конверта бизнес-сообщение и сохраняем его в файл в каталоге responses
-                                response.processPrimaryMessage();
-                                // Логируем получение ответа в базе данных
-                                response.logAnswer();
-                                break;
-                            case "StatusMessage":
-                                // Логируем статус запроса в базе данных
-                                response.logStatus();
-                                break;
-                            case "BusinessStatus":
-                                // Считываем бизнес-статус
-                                response.processBusinessStatus();
-                                // Логируем статус BUSINESS
-                                response.logBusinessStatus();
-                                break;
-                            case "ErrorMessage":
-                                // Выбираем из сообщения источник, код и описание ошибки
-                                response.processErrorMessage();
-                                // Логируем статус FAILED и описание ошибки в базе данных
-                                response.logError();
-                                // Перемещаем соответствующий запрос в каталог error
-                                response.moveRequest();
-                                break;
-                            case "RejectMessage":
-                                // Выбираем из сообщения информацию об отказе
-                                response.processRejectMessage();
-                                // Логируем статус REJECTED и описание причин отказа в базе данных
-                                response.logReject();
-                                break;
-                            case "FSSPRequest":
-                                response.processFSSPRequest();
-                                break;
-                            case "FSSPBusinessStatus":
-                                response.processFSSPResponse();
-                                break;
-                            default:
-                                // Не удалось определить статус ответа
-                                // Выкидываем исключение и помещаем ответ в failed для последующего разбора
-                                throw new ResponseException("Неизвестный тип ответа " + file.getFileName(), new Exception());
-                        }
-                        // Перемещаем обработанный ответ в каталог processed
-                        Path target = processedDir.resolve(file.getFileName());
                         Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
-                        filesNum++; // Увеличиваем счетчик ответов
-                    } catch (ResponseException | SQLException e) {
+                    } catch (IOException ex) {
                         LOG.error(e.getMessage());
-                        LOG.info(String.format("Не удалось обработать ответ %s.", file.getFileName()));
-
-                        // Перемещаем файл с ответом, вызвавший исключение, в каталог failed
-                        Path target = failedDir.resolve(file.getFileName());
-                        try {
-                            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
-                        } catch (IOException ex) {
-                            LOG.error(e.getMessage());
-                            LOG.info(String.format("Не удалось переместить файл %s в каталог failed.", file.getFileName()));
-                        }
-                    } catch (IOException e) {
-                        LOG.error(e.getMessage());
-                        LOG.info(String.format("Произошла ошибка ввода-вывода при обработке ответа %s.", file.getFileName()));
-                    } catch (ParsingException e) {
-                        // Это исключение возникает в случае, если пытались парсить не до конца скопированный файл
-                        LOG.info(String.format("Не удалось распарсить ответ %s. Ответ будет обработан в следующем цикле.", file.getFileName()));
-                        // Больше ничего не делаем и оставляем файл ответа в каталоге IN до следующего цикла.
-                    } catch (AttachmentException e) {
-                        // Это исключение возникает, когда адаптер не успел обработать (сохранить) вложения, на которые
-                        // ссылается обрабатываемый ответ.
-                        LOG.info(String.format("Нулевой размер файла с архивом, полученном при обработке ответа %s. Ответ будет обработан в следующем цикле.", file.getFileName()));
-                        // Больше ничего не делаем и оставляем файл ответа в каталоге IN до следующего цикла.
+                        LOG.info(String.format("Не удалось переместить файл %s в каталог failed.", file.getFileName()));
                     }
+                } catch (IOException e) {
+                    LOG.error(e.getMessage());
+                    LOG.info(String.format("Произошла ошибка ввода-вывода при обработке ответа %s.", file.getFileName()));
+                } catch (ParsingException e) {
+                    // Это исключение возникает в случае, если пытались парсить не до конца скопированный файл
+                    postpone(file, String.format("Не удалось распарсить ответ %s.", file.getFileName()));
+                } catch (AttachmentException e) {
+                    // Это исключение возникает, когда адаптер не успел обработать (сохранить) вложения, на которые
+                    // ссылается обрабатываемый ответ.
+                    postpone(file, String.format("Нулевой размер файла с архивом, полученном при обработке ответа %s.", file.getFileName()));
                 }
             }
             LOG.info(String.format("Обработано %d ответов из %d.", filesNum, files.size()));
         }
+        watcher.close();
     }
 
     /**
-     * Метод пытается открыть файл на чтение, и если это не получается, то возвращается false.
-     * Иначе возвращается true.
-     * @param file Проверяемый файл
-     * @return true, если файл получилось открыть на чтение, и false в противном случае.
+     * Метод откладывает повторную обработку ответа, оставляя его в каталоге IN.
+     * Если попытки исчерпаны, ответ перемещается в каталог failed для последующего разбора.
+     *
+     * @param file   Файл ответа
+     * @param reason Причина, по которой ответ не удалось обработать
      */
-    private boolean isFileAccessible(File file) {
-        try {
-            FileInputStream fis = new FileInputStream(file);
-            fis.close();
-            return true;
-        } catch (IOException e) {
-            LOG.info(String.format("Файл %s недоступен для чтения.", file.getName()));
-            return false;
+    private void postpone(Path file, String reason) {
+        int attempt = retryScheduler.getAttempt(file);
+        if (retryScheduler.scheduleRetry(file)) {
+            LOG.info(String.format("%s Ответ будет обработан повторно (попытка %d из %d).", reason, attempt + 1, retryScheduler.getMaxAttempts()));
+            return;
         }
-    }
-
-    /**
-     * Метод возвращает набор путей к файлам, находящимся в каталоге inputDir
-     * Из набора исключаются файлы, которые являются каталогами
-     * @return Set<Path> Набор файлов в каталоге с входящими запросами
-     */
-    private Set<Path> getFileList() {
-        try (Stream<Path> stream = Files.list(inputDir)) {
-            return stream
-                    .filter(file -> !Files.isDirectory(file))
-                    .collect(Collectors.toSet());
+        LOG.error(String.format("%s Попытки обработки исчерпаны (%d), ответ перемещается в каталог failed.", reason, attempt));
+        try {
+            Files.move(file, failedDir.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
             LOG.error(e.getMessage());
-            throw new RuntimeException(e);
+            LOG.info(String.format("Не удалось переместить файл %s в каталог failed.", file.getFileName()));
         }
     }
-
 }
@@ -4,12 +4,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.hemulen.converter.db.Adapter13DB;
 import ru.hemulen.converter.db.AdapterDB;
+import ru.hemulen.converter.db.ChangeFeed;
 import ru.hemulen.converter.db.ConverterDB;
+import ru.hemulen.converter.db.SyncPosition;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class ResponseUpdater extends Thread {
     private static Logger LOG = LoggerFactory.getLogger(ResponseUpdater.class.getName());
@@ -18,7 +22,14 @@ public class ResponseUpdater extends Thread {
     private Adapter13DB adapter13DB;
     private ConverterDB converterDB;
     private long sleepTime;
-    private Timestamp lastUpdateTime;
+    private int pageSize;                   // Количество записей на одной странице синхронизации
+    private Timestamp lastUpdateTime;       // Сохраненный в базе конвертера штамп времени синхронизации
+    private SyncPosition position;          // Позиция синхронизации с первым instance адаптера
+    private SyncPosition position13;        // Позиция синхронизации со вторым instance адаптера
+    private ChangeFeed feed;                // Уведомления об изменениях в базе первого instance адаптера или null
+    private ChangeFeed feed13;              // Уведомления об изменениях в базе второго instance адаптера или null
+    private long fallbackTime;              // Интервал опроса баз адаптера, пока уведомления работают
+    private final Semaphore changes = new Semaphore(0);  // Сигналы уведомлений, будящие поток
 
     public ResponseUpdater(Properties props) {
         // Устанавливаем имя потока
@@ -31,55 +42,93 @@ public class ResponseUpdater extends Thread {
         converterDB = new ConverterDB(props);
         LOG.info("Создано подключение к PostgreSQL.");
         sleepTime = Long.parseLong(props.getProperty("RESPONSE_FREQ"));
+        // Размер страницы ограничен количеством параметров одного UPDATE: 3 параметра на строку при пределе 32767
+        pageSize = Math.min(Math.max(Integer.parseInt(props.getProperty("SYNC_PAGE_SIZE", "1000").trim()), 1), 10000);
         // Извлекаем из БД postgres время последнего обновления ответов
         try {
             lastUpdateTime = converterDB.getLastResponseTimestamp();
         } catch (SQLException e) {
+            lastUpdateTime = null;
+        }
+        if (lastUpdateTime == null) {
             // Если по какой-то причине не удалось извлечь штамп времени из БД, то присваиваем хоть что-нибудь.
             lastUpdateTime = Timestamp.valueOf("2019-08-01 00:00:00.000000");
         }
+        // Оба instance продолжают с сохраненного штампа, дальше у каждого своя позиция.
+        // Каждый проход повторно читает записи за SYNC_LOOKBACK до позиции, чтобы не пропустить поздно зафиксированные.
+        long lookback = Long.parseLong(props.getProperty("SYNC_LOOKBACK", "60000").trim());
+        position = new SyncPosition(lastUpdateTime, lookback);
+        position13 = new SyncPosition(lastUpdateTime, lookback);
+        // Если включены уведомления баз адаптера, то поток просыпается по ним, а опрос по таймеру остается страховкой
+        if (Boolean.parseBoolean(props.getProperty("ADAPTER_NOTIFY", "false").trim())) {
+            fallbackTime = Long.parseLong(props.getProperty("ADAPTER_NOTIFY_FALLBACK", "300000").trim());
+            feed = adapterDB.listen("ResponseUpdaterFeedThread", "converter_response", changes::release);
+            feed13 = adapter13DB.listen("ResponseUpdater13FeedThread", "converter_response", changes::release);
+        }
         LOG.info("ResponseUpdater инициализирован.");
     }
 
     @Override
     public void run() {
+        if (isRunnable && feed != null) {
+            feed.start();
+            feed13.start();
+        }
         while (isRunnable) {
-            try {
-                // Получаем из базы первого instance адаптера все полученные за время последнего обновления ответы
-                ResultSet result = adapterDB.getResponses(lastUpdateTime);
-                // Получаем из базы второго instance адаптера все полученные за время последнего обновления ответы
-                ResultSet result13 = adapter13DB.getResponses(lastUpdateTime);
-                Timestamp latestDeliveryDate = null;
-                if (result != null) {
-                    latestDeliveryDate = converterDB.updateResponses(result);
-                    result.close();
+            // Переносим в лог конвертера полученные ответы из базы первого и второго instance адаптера постранично.
+            // Ошибка одного instance не мешает синхронизации другого.
+            sync(adapterDB::getResponses, position, adapterDB::reconnect);
+            sync(adapter13DB::getResponses, position13, adapter13DB::reconnect);
+            // Сохраняем на всякий случай самый ранний из двух штампов времени в БД postgres, чтобы после перезапуска
+            // не пропустить записи ни одного instance
+            Timestamp earliest = position.getTimestamp().before(position13.getTimestamp()) ? position.getTimestamp() : position13.getTimestamp();
+            if (!earliest.equals(lastUpdateTime)) {
+                try {
+                    converterDB.setLastResponseTimestamp(earliest);
+                    lastUpdateTime = earliest;
+                } catch (Exception e) {
+                    LOG.error(e.getMessage());
                 }
-                Timestamp latestDeliveryDate13 = null;
-                if (result13 != null) {
-                    latestDeliveryDate13 = converterDB.updateResponses(result13);
-                    result13.close();
-                }
-
-                if (latestDeliveryDate != null && latestDeliveryDate13 != null) {
-                    // Сохраняем самое раннее из двух RESPONSE_TIMESTAMP в базе конвертера
-                    if (latestDeliveryDate.before(latestDeliveryDate13)) {
-                        lastUpdateTime = latestDeliveryDate;
-                    } else {
-                        lastUpdateTime = latestDeliveryDate13;
-                    }
-                } else if (latestDeliveryDate != null) {
-                    lastUpdateTime = latestDeliveryDate;
-                } else if (latestDeliveryDate13 != null) {
-                    lastUpdateTime = latestDeliveryDate13;
-                }
-                // Сохраняем на всякий случай время последнего обновления ответов в БД postgres
-                converterDB.setLastResponseTimestamp(lastUpdateTime);
-                // И засыпаем на определенное в параметре время
-                sleep(sleepTime);
-
-            } catch (Exception e) {
+            }
+            // И засыпаем на определенное в параметре время или до уведомления об изменениях в базе адаптера - в том числе
+            // после ошибки, чтобы не опрашивать недоступную базу в цикле.
+            // Пока уведомления обоих instance работают, опрос по таймеру нужен только на случай потерянного уведомления.
+            boolean isNotified = feed != null && feed.isListening() && feed13.isListening();
+            try {
+                changes.tryAcquire(isNotified ? fallbackTime : sleepTime, TimeUnit.MILLISECONDS);
+                // Остальные накопившиеся уведомления объединяются в этот же проход
+                changes.drainPermits();
+            } catch (InterruptedException e) {
                 LOG.error(e.getMessage());
             }
         }
+        if (feed != null) {
+            feed.close();
+            feed13.close();
+        }
+    }
+
+    /**
+     * Метод читает из базы instance адаптера страницы ответов после позиции синхронизации и обновляет по каждой странице
+     * лог конвертера одним запросом, пока не будет прочитана неполная страница.
+     * Если синхронизация не удалась, то ошибка записывается в лог, соединение с базой адаптера при необходимости
+     * восстанавливается, а позиция остается на последней обновленной странице до следующего прохода.
+     * @param source    Источник страниц (база instance адаптера)
+     * @param position  Позиция синхронизации с этим instance
+     * @param reconnect Восстановление соединения с базой instance
+     */
+    private void sync(SyncPosition.PageSource source, SyncPosition position, Runnable reconnect) {
+        try {
+            position.startPass();
+            int rows;
+            do {
+                try (ResultSet page = source.getPage(position, pageSize)) {
+                    rows = converterDB.updateResponses(page, position);
+                }
+            } while (rows == pageSize && isRunnable);
+        } catch (Exception e) {
+            LOG.error(e.getMessage());
+            reconnect.run();
+        }
     }
 }
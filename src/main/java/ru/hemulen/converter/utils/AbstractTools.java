@@ -4,7 +4,6 @@ import org.apache.commons.io.IOUtils;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -25,16 +24,12 @@ public abstract class AbstractTools {
      * @throws ParserConfigurationException в случае ошибки создания xml парсера
      * @throws SAXException                 в случае невалидного xml кода
      */
-    public static synchronized Element fileToElement(File file) throws IOException, ParserConfigurationException, SAXException {
+    public static Element fileToElement(File file) throws IOException, ParserConfigurationException, SAXException {
         if (file == null) {
             return null;
         }
         try (InputStream inputStream = new FileInputStream(file)) {
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            documentBuilderFactory.setNamespaceAware(true);
-            documentBuilderFactory.setCoalescing(true);
-            documentBuilderFactory.setIgnoringElementContentWhitespace(true);
-            return documentBuilderFactory.newDocumentBuilder().parse(inputStream).getDocumentElement();
+            return DocumentBuilderPool.get(true, true, true).parse(inputStream).getDocumentElement();
         }
     }
 
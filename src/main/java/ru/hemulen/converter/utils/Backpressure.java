@@ -0,0 +1,87 @@
+package ru.hemulen.converter.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс ограничивает прием запросов в обработку, когда адаптер не успевает забирать подготовленные запросы.
+ * <p>
+ * Пока очередь отправки (каталог prepared) не достигла нижней границы, запросы принимаются без ограничений.
+ * Между нижней и верхней границами прием приостанавливается постепенно: сначала для видов сведений с низким
+ * приоритетом (большим номером), а при верхней границе - для всех. Поэтому при остановке адаптера
+ * запросы не подписываются и не расходуют суточный лимит впустую, а остаются в каталоге requests.
+ * <p>
+ * Время, на которое откладывается запрос, оценивается по темпу, с которым адаптер забирает запросы:
+ * это время, за которое очередь опустится до границы вида сведений. Если адаптер ничего не забирает,
+ * запрос откладывается на максимальное время.
+ */
+public class Backpressure {
+    private static final long SAMPLE_PERIOD = 10000;    // Период измерения темпа отправки (мс)
+    private static final double SMOOTHING = 0.3;        // Вес последнего измерения в сглаженном темпе
+    private static final long MIN_DELAY = 1000;         // Минимальное время, на которое откладывается запрос
+    private final int lowWatermark;     // Глубина очереди, с которой приостанавливается прием запросов самого низкого приоритета
+    private final int highWatermark;    // Глубина очереди, с которой приостанавливается прием всех запросов
+    private final int maxPriority;      // Самый низкий приоритет (наибольший номер) видов сведений
+    private final long maxDelay;        // Максимальное время, на которое откладывается запрос
+    private final AtomicLong drained = new AtomicLong();    // Количество запросов, отправленных в адаптер с начала измерения
+    private long sampleStart = System.currentTimeMillis();  // Начало текущего измерения
+    private double drainRate;           // Сглаженный темп отправки (запросов в миллисекунду)
+
+    /**
+     * @param lowWatermark  Нижняя граница глубины очереди отправки
+     * @param highWatermark Верхняя граница глубины очереди отправки
+     * @param maxPriority   Самый низкий приоритет видов сведений
+     * @param maxDelay      Максимальное время (мс), на которое откладывается запрос
+     */
+    public Backpressure(int lowWatermark, int highWatermark, int maxPriority, long maxDelay) {
+        this.highWatermark = Math.max(highWatermark, 1);
+        this.lowWatermark = Math.min(Math.max(lowWatermark, 0), this.highWatermark);
+        this.maxPriority = Math.max(maxPriority, 1);
+        this.maxDelay = Math.max(maxDelay, MIN_DELAY);
+    }
+
+    /**
+     * Метод учитывает запросы, которые забрал адаптер. Вызывается потоком отправки.
+     *
+     * @param count Количество отправленных запросов
+     */
+    public void drained(int count) {
+        drained.addAndGet(count);
+    }
+
+    /**
+     * Метод определяет, нужно ли отложить прием запроса вида сведений
+     *
+     * @param priority Приоритет вида сведений
+     * @param depth    Текущая глубина очереди отправки
+     * @return Время в миллисекундах, на которое нужно отложить запрос (0 - запрос принимается сразу)
+     */
+    public long getDelay(int priority, int depth) {
+        // Граница вида сведений: от верхней для приоритета 0 до нижней для самого низкого приоритета
+        int clamped = Math.min(Math.max(priority, 0), maxPriority);
+        long watermark = highWatermark - (long) (highWatermark - lowWatermark) * clamped / maxPriority;
+        if (depth < watermark) {
+            return 0;
+        }
+        double rate = getDrainRate();
+        if (rate <= 0) {
+            return maxDelay;
+        }
+        long delay = (long) Math.ceil((depth - watermark + 1) / rate);
+        return Math.min(Math.max(delay, MIN_DELAY), maxDelay);
+    }
+
+    /**
+     * Метод возвращает сглаженный темп отправки. Измерение обновляется не чаще, чем раз в SAMPLE_PERIOD,
+     * и затухает, если адаптер перестал забирать запросы.
+     */
+    private synchronized double getDrainRate() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - sampleStart;
+        if (elapsed >= SAMPLE_PERIOD) {
+            double sample = (double) drained.getAndSet(0) / elapsed;
+            drainRate = drainRate == 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * drainRate;
+            sampleStart = now;
+        }
+        return drainRate;
+    }
+}
@@ -0,0 +1,120 @@
+package ru.hemulen.converter.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiPredicate;
+
+/**
+ * Класс выдает файлы каталога порциями ограниченного размера в порядке поступления (от самых старых к новым).
+ * Порядок поступления определяется временем изменения файла, а при его совпадении - именем файла.
+ * <p>
+ * В начале круга каталог читается потоком DirectoryStream один раз: атрибуты файлов читаются, файлы отбираются
+ * фильтром и сортируются, а затем порции выдаются из этого снимка без обращения к каталогу. Поэтому время выдачи
+ * порции не зависит от количества файлов в очереди, а стоимость чтения каталога распределяется на весь круг.
+ * Когда снимок исчерпан, возвращается пустая порция, и следующий вызов начинает новый круг: файлы, появившиеся
+ * за время круга, и оставленные обработчиком в каталоге файлы (например, недописанные) будут выданы в нем.
+ * Фильтр получает атрибуты, уже прочитанные при листинге, и позволяет отсеять файлы без дополнительных обращений к диску.
+ */
+public class DirectoryLister {
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryLister.class.getName());
+    private final Path dir;         // Читаемый каталог
+    private final int chunkSize;    // Максимальное количество файлов в одной порции
+    private final BiPredicate<Path, BasicFileAttributes> filter;    // Отбор файлов, которые можно выдавать
+    private List<Entry> snapshot;   // Отсортированные файлы текущего круга или null, если круг не начат
+    private int position;           // Номер первого невыданного файла снимка
+
+    public DirectoryLister(Path dir, int chunkSize) {
+        this(dir, chunkSize, (path, attributes) -> true);
+    }
+
+    public DirectoryLister(Path dir, int chunkSize, BiPredicate<Path, BasicFileAttributes> filter) {
+        this.dir = dir;
+        this.chunkSize = Math.max(chunkSize, 1);
+        this.filter = filter;
+    }
+
+    /**
+     * Метод возвращает очередную порцию файлов каталога (без подкаталогов), упорядоченную от старых к новым
+     *
+     * @return Список файлов порции или пустой список, если круг по каталогу закончен
+     */
+    public synchronized List<Path> nextChunk() {
+        if (snapshot == null) {
+            snapshot = list();
+            position = 0;
+        }
+        List<Path> result = new ArrayList<>(Math.min(chunkSize, snapshot.size() - position));
+        while (result.size() < chunkSize && position < snapshot.size()) {
+            Path path = snapshot.get(position++).path;
+            // Файл могли забрать после чтения каталога
+            if (!Files.notExists(path)) {
+                result.add(path);
+            }
+        }
+        if (result.isEmpty()) {
+            // Круг закончен - следующий вызов прочитает каталог заново
+            snapshot = null;
+        }
+        return result;
+    }
+
+    /**
+     * Метод читает каталог и возвращает отобранные фильтром файлы, упорядоченные от старых к новым
+     */
+    private List<Entry> list() {
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // Файл успели забрать между чтением каталога и чтением атрибутов
+                    continue;
+                }
+                if (attributes.isDirectory()) {
+                    continue;
+                }
+                // Фильтр применяется к свежим атрибутам: по ним FileReadinessDetector определяет, дописан ли файл
+                if (filter.test(path, attributes)) {
+                    entries.add(new Entry(path, attributes.lastModifiedTime().toMillis()));
+                }
+            }
+        } catch (IOException e) {
+            LOG.error(String.format("Не удалось прочитать каталог %s.", dir));
+            LOG.error(e.getMessage());
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    /**
+     * Элемент очереди: файл и время его изменения
+     */
+    private static class Entry implements Comparable<Entry> {
+        private final Path path;
+        private final String name;
+        private final long modified;
+
+        private Entry(Path path, long modified) {
+            this.path = path;
+            this.name = path.getFileName().toString();
+            this.modified = modified;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int result = Long.compare(modified, other.modified);
+            return result != 0 ? result : name.compareTo(other.name);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package ru.hemulen.converter.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+
+/**
+ * Класс отслеживает появление файлов в каталогах через WatchService и позволяет потоку-обработчику
+ * ждать новых файлов вместо того, чтобы засыпать на фиксированное время и заново читать каталог.
+ * События от WatchService читаются отдельным потоком-демоном и только взводят признак изменений:
+ * список файлов обработчик по-прежнему получает сам, поэтому потерянное или переполненное событие
+ * ничего не ломает - файл будет найден при следующем контрольном пересканировании каталога.
+ * Если WatchService создать не удалось (например, для сетевого каталога), метод await работает как обычный sleep.
+ */
+public class DirectoryWatcher implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryWatcher.class.getName());
+    private final Object lock = new Object();   // Монитор, на котором ждет поток-обработчик
+    private boolean changed;                    // Признак того, что с момента последнего ожидания в каталогах что-то появилось
+    private volatile WatchService watchService;
+
+    /**
+     * Конструктор регистрирует каталоги в WatchService и запускает поток чтения событий о появлении файлов
+     *
+     * @param name Имя потока чтения событий
+     * @param dirs Отслеживаемые каталоги
+     */
+    public DirectoryWatcher(String name, Path... dirs) {
+        this(name, new WatchEvent.Kind<?>[]{ENTRY_CREATE}, dirs);
+    }
+
+    /**
+     * Конструктор регистрирует каталоги в WatchService и запускает поток чтения событий
+     *
+     * @param name  Имя потока чтения событий
+     * @param kinds Отслеживаемые события (например, ENTRY_DELETE, чтобы узнавать, что файлы забрали из каталога)
+     * @param dirs  Отслеживаемые каталоги
+     */
+    public DirectoryWatcher(String name, WatchEvent.Kind<?>[] kinds, Path... dirs) {
+        try {
+            watchService = dirs[0].getFileSystem().newWatchService();
+            for (Path dir : dirs) {
+                dir.register(watchService, kinds);
+            }
+            Thread pollerThread = new Thread(this::pollEvents, name);
+            pollerThread.setDaemon(true);
+            pollerThread.start();
+            LOG.info(String.format("Запущено отслеживание каталогов %s.", Arrays.toString(dirs)));
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.error(String.format("Не удалось запустить отслеживание каталогов %s. Каталоги будут опрашиваться периодически.", Arrays.toString(dirs)));
+            LOG.error(e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Метод возвращает признак того, что каталоги отслеживаются через WatchService
+     *
+     * @return true, если события файловой системы доступны, и false, если остается только периодический опрос
+     */
+    public boolean isWatching() {
+        return watchService != null;
+    }
+
+    /**
+     * Метод блокирует вызывающий поток до события в отслеживаемых каталогах,
+     * вызова wakeUp или истечения времени ожидания.
+     *
+     * @param timeout Максимальное время ожидания в миллисекундах (интервал контрольного пересканирования)
+     * @return true, если ожидание прервано событием, и false, если истекло время ожидания
+     * @throws InterruptedException поток прерван во время ожидания
+     */
+    public boolean await(long timeout) throws InterruptedException {
+        synchronized (lock) {
+            long deadline = System.currentTimeMillis() + timeout;
+            long rest = timeout;
+            while (!changed && rest > 0) {
+                lock.wait(rest);
+                rest = deadline - System.currentTimeMillis();
+            }
+            boolean result = changed;
+            changed = false;
+            return result;
+        }
+    }
+
+    /**
+     * Метод будит поток, ожидающий в await, так же, как это делает событие файловой системы
+     */
+    public void wakeUp() {
+        synchronized (lock) {
+            changed = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOG.error(e.getMessage());
+            }
+            watchService = null;
+        }
+    }
+
+    /**
+     * Метод потока-демона: ждет события WatchService и будит поток-обработчик
+     */
+    private void pollEvents() {
+        while (true) {
+            WatchService service = watchService;
+            if (service == null) {
+                return;
+            }
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            // Сами события не нужны - обработчик все равно читает каталог, поэтому их достаточно вычитать
+            key.pollEvents();
+            if (!key.reset()) {
+                LOG.error(String.format("Каталог %s больше не отслеживается.", key.watchable()));
+            }
+            wakeUp();
+        }
+    }
+}
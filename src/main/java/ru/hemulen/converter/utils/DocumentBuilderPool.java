@@ -0,0 +1,47 @@
+package ru.hemulen.converter.utils;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Класс выдает XML-парсеры (DocumentBuilder) для повторного использования.
+ * Ни DocumentBuilderFactory, ни DocumentBuilder не потокобезопасны, поэтому у каждого потока свой набор парсеров -
+ * по одному на каждое сочетание настроек. Парсер создается при первом обращении потока и перед каждой выдачей
+ * сбрасывается в исходное состояние, так что потоки разбирают XML параллельно, не создавая фабрику на каждый файл
+ * и не ожидая друг друга на общей блокировке.
+ * <p>
+ * Выданный парсер можно использовать только в текущем потоке и только до следующего вызова get с теми же настройками.
+ */
+public final class DocumentBuilderPool {
+    private static final ThreadLocal<DocumentBuilder[]> builders = ThreadLocal.withInitial(() -> new DocumentBuilder[8]);
+
+    private DocumentBuilderPool() {
+    }
+
+    /**
+     * Метод возвращает парсер текущего потока с указанными настройками
+     *
+     * @param namespaceAware                   Поддержка пространств имен
+     * @param coalescing                       Объединение CDATA с соседним текстом
+     * @param ignoringElementContentWhitespace Игнорирование пробельных символов между элементами
+     * @return Парсер, сброшенный в исходное состояние
+     * @throws ParserConfigurationException ошибка создания парсера
+     */
+    public static DocumentBuilder get(boolean namespaceAware, boolean coalescing, boolean ignoringElementContentWhitespace) throws ParserConfigurationException {
+        int index = (namespaceAware ? 1 : 0) | (coalescing ? 2 : 0) | (ignoringElementContentWhitespace ? 4 : 0);
+        DocumentBuilder[] threadBuilders = builders.get();
+        DocumentBuilder builder = threadBuilders[index];
+        if (builder == null) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(namespaceAware);
+            factory.setCoalescing(coalescing);
+            factory.setIgnoringElementContentWhitespace(ignoringElementContentWhitespace);
+            builder = factory.newDocumentBuilder();
+            threadBuilders[index] = builder;
+        } else {
+            builder.reset();
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,102 @@
+package ru.hemulen.converter.utils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Класс определяет, дописан ли файл, положенный в каталог другим процессом (адаптером или внешней системой).
+ * Вместо пробного открытия файла на чтение используются атрибуты, уже прочитанные при листинге каталога:
+ * <ul>
+ *     <li>файлы с временными именами (начинающиеся с точки, с расширениями .tmp и .part) не готовы никогда -
+ *     их выдадут после переименования в постоянное имя;</li>
+ *     <li>файл готов, если он не изменялся дольше settleTime;</li>
+ *     <li>если время изменения файла нельзя сравнивать с локальными часами (сетевой каталог), файл также
+ *     считается готовым, когда его размер и время изменения не менялись между наблюдениями дольше settleTime.</li>
+ * </ul>
+ * Недописанные файлы запоминаются, чтобы обработчик мог проснуться ровно к моменту их готовности.
+ */
+public class FileReadinessDetector {
+    private final long settleTime;  // Время, в течение которого файл не должен меняться, чтобы считаться дописанным
+    private final Map<Path, Observation> pending = new ConcurrentHashMap<>();  // Недописанные файлы
+
+    public FileReadinessDetector(long settleTime) {
+        this.settleTime = Math.max(settleTime, 0);
+    }
+
+    /**
+     * Метод проверяет, дописан ли файл. Подходит в качестве фильтра DirectoryLister.
+     *
+     * @param path       Проверяемый файл
+     * @param attributes Атрибуты файла, прочитанные при листинге каталога
+     * @return true, если файл можно передавать на обработку
+     */
+    public boolean isReady(Path path, BasicFileAttributes attributes) {
+        if (isTemporaryName(path.getFileName().toString())) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long modified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+        if (now - modified >= settleTime) {
+            pending.remove(path);
+            return true;
+        }
+        Observation previous = pending.get(path);
+        if (previous != null && previous.size == size && previous.modified == modified) {
+            if (now - previous.since >= settleTime) {
+                pending.remove(path);
+                return true;
+            }
+            return false;
+        }
+        // Файл появился впервые или еще пишется - начинаем отсчет заново
+        pending.put(path, new Observation(size, modified, now));
+        return false;
+    }
+
+    /**
+     * Метод возвращает время, через которое ожидается готовность хотя бы одного из недописанных файлов.
+     * Файлы, которые за это время исчезли из каталога, забываются.
+     *
+     * @return Время ожидания в миллисекундах или Long.MAX_VALUE, если недописанных файлов нет
+     */
+    public long getPendingDelay() {
+        long now = System.currentTimeMillis();
+        long delay = Long.MAX_VALUE;
+        Iterator<Map.Entry<Path, Observation>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Observation> entry = iterator.next();
+            if (!Files.exists(entry.getKey())) {
+                iterator.remove();
+                continue;
+            }
+            long ready = Math.min(entry.getValue().modified, entry.getValue().since) + settleTime;
+            delay = Math.min(delay, Math.max(ready - now, 0));
+        }
+        return delay;
+    }
+
+    private static boolean isTemporaryName(String name) {
+        String lowerName = name.toLowerCase();
+        return lowerName.startsWith(".") || lowerName.endsWith(".tmp") || lowerName.endsWith(".part");
+    }
+
+    /**
+     * Последнее наблюдение за недописанным файлом
+     */
+    private static class Observation {
+        private final long size;
+        private final long modified;
+        private final long since;   // Момент, с которого размер и время изменения файла не менялись
+
+        private Observation(long size, long modified, long since) {
+            this.size = size;
+            this.modified = modified;
+            this.since = since;
+        }
+    }
+}
@@ -4,7 +4,6 @@ import org.apache.commons.io.IOUtils;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -22,14 +21,9 @@ import java.util.zip.ZipOutputStream;
  * Каждый поток приложения будет создавать свои собственные экземпляры класса FileUtils.
  */
 public class FileUtils {
-    private DocumentBuilderFactory documentBuilderFactory;
     private Transformer transformer;
 
     public FileUtils() throws TransformerConfigurationException {
-        documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        documentBuilderFactory.setNamespaceAware(true);
-        documentBuilderFactory.setCoalescing(true);
-        documentBuilderFactory.setIgnoringElementContentWhitespace(true);
         transformer = TransformerFactory.newInstance().newTransformer();
     }
     /**
@@ -41,12 +35,12 @@ public class FileUtils {
      * @throws ParserConfigurationException в случае ошибки создания xml парсера
      * @throws SAXException                 в случае невалидного xml кода
      */
-    public synchronized Element fileToElement(File file) throws IOException, ParserConfigurationException, SAXException {
+    public Element fileToElement(File file) throws IOException, ParserConfigurationException, SAXException {
         if (file == null) {
             return null;
         }
         try (InputStream inputStream = new FileInputStream(file)) {
-            return documentBuilderFactory.newDocumentBuilder().parse(inputStream).getDocumentElement();
+            return DocumentBuilderPool.get(true, true, true).parse(inputStream).getDocumentElement();
         }
     }
 
@@ -0,0 +1,296 @@
+package ru.hemulen.converter.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Очередь подготовленных запросов, ожидающих отправки в адаптер.
+ * <p>
+ * Файлы подготовленных запросов лежат в одном каталоге prepared, а порядок их отправки хранится в памяти:
+ * для каждого приоритета - своя очередь (в порядке поступления или, при планировании по крайнему сроку,
+ * в порядке крайних сроков). RequestSender выбирает запросы из памяти и не сканирует каталоги приоритетов.
+ * <p>
+ * Каждое изменение очереди дописывается строкой в журнал (A - запрос добавлен, D - запрос отправлен), поэтому
+ * после перезапуска очередь восстанавливается из журнала. При восстановлении файлы каталога prepared, которых нет
+ * в журнале (например, записанные перед аварийным завершением), и файлы из подкаталогов приоритетов прежних версий
+ * также ставятся в очередь. Когда отправленных записей в журнале становится больше, чем ожидающих, журнал сжимается.
+ */
+public class PreparedQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(PreparedQueue.class.getName());
+    private static final int MIN_COMPACT_RECORDS = 10000;  // Меньше этого количества отправленных записей журнал не сжимается
+    private static final int IMPORT_CHUNK_SIZE = 1000;      // Размер порции файлов при переносе подкаталогов приоритетов прежних версий
+    private final Path spoolDir;            // Каталог с файлами подготовленных запросов
+    private final Path journalFile;         // Журнал очереди
+    private final Comparator<Entry> order;  // Порядок запросов внутри приоритета
+    private final Map<Integer, PriorityQueue<Entry>> queues = new TreeMap<>();  // Очереди по приоритетам
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();     // Ожидающие запросы по номерам записей журнала
+    private BufferedWriter journal;         // Дописываемый журнал
+    private long nextSeq;                   // Номер следующей записи
+    private int deadRecords;                // Количество записей журнала об уже отправленных запросах
+
+    /**
+     * Конструктор восстанавливает очередь из журнала и каталога prepared
+     *
+     * @param spoolDir        Каталог подготовленных запросов
+     * @param journalFile     Файл журнала очереди
+     * @param byDeadline      Упорядочивать запросы приоритета по крайнему сроку (иначе - в порядке поступления)
+     * @param defaultPriority Приоритет файлов, которые есть в каталоге, но отсутствуют в журнале
+     * @throws IOException ошибка чтения каталога или записи журнала
+     */
+    public PreparedQueue(Path spoolDir, Path journalFile, boolean byDeadline, int defaultPriority) throws IOException {
+        this.spoolDir = spoolDir;
+        this.journalFile = journalFile;
+        Comparator<Entry> bySeq = Comparator.comparingLong(entry -> entry.seq);
+        order = byDeadline ? Comparator.<Entry>comparingLong(entry -> entry.deadline).thenComparing(bySeq) : bySeq;
+        recover(defaultPriority);
+    }
+
+    /**
+     * Метод ставит подготовленный запрос в очередь
+     *
+     * @param file     Файл подготовленного запроса в каталоге prepared
+     * @param priority Приоритет вида сведений
+     * @param deadline Крайний срок запроса (миллисекунды)
+     * @throws IOException ошибка записи журнала (запрос все равно ставится в очередь)
+     */
+    public synchronized void add(Path file, int priority, long deadline) throws IOException {
+        Entry entry = new Entry(nextSeq++, file.getFileName().toString(), priority, deadline);
+        // Запрос отправляется, даже если журнал не записан: после перезапуска его файл будет найден в каталоге prepared
+        enqueue(entry);
+        writeRecord(String.format("A\t%d\t%d\t%d\t%s", entry.seq, entry.priority, entry.deadline, entry.fileName));
+        journal.flush();
+    }
+
+    /**
+     * Метод возвращает первый запрос каждого непустого приоритета, не убирая их из очереди
+     *
+     * @return Первые запросы, упорядоченные по номеру приоритета
+     */
+    public synchronized Map<Integer, Entry> heads() {
+        Map<Integer, Entry> heads = new TreeMap<>();
+        for (Map.Entry<Integer, PriorityQueue<Entry>> queue : queues.entrySet()) {
+            heads.put(queue.getKey(), queue.getValue().peek());
+        }
+        return heads;
+    }
+
+    /**
+     * Метод убирает отправленный (или исчезнувший) запрос из очереди
+     *
+     * @param entry Запрос, полученный из heads
+     * @throws IOException ошибка записи журнала
+     */
+    public synchronized void remove(Entry entry) throws IOException {
+        if (entries.remove(entry.seq) == null) {
+            return;
+        }
+        PriorityQueue<Entry> queue = queues.get(entry.priority);
+        if (queue.peek() == entry) {
+            queue.poll();
+        } else {
+            queue.remove(entry);
+        }
+        if (queue.isEmpty()) {
+            queues.remove(entry.priority);
+        }
+        writeRecord("D\t" + entry.seq);
+        journal.flush();
+        // Запись о добавлении и запись об отправке больше не нужны
+        deadRecords += 2;
+        if (deadRecords > Math.max(entries.size(), MIN_COMPACT_RECORDS)) {
+            compact();
+        }
+    }
+
+    /**
+     * Метод возвращает файл запроса в каталоге prepared
+     */
+    public Path resolve(Entry entry) {
+        return spoolDir.resolve(entry.fileName);
+    }
+
+    /**
+     * Метод возвращает количество запросов, ожидающих отправки
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void close() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOG.error(e.getMessage());
+        }
+    }
+
+    private void enqueue(Entry entry) {
+        entries.put(entry.seq, entry);
+        queues.computeIfAbsent(entry.priority, priority -> new PriorityQueue<>(order)).add(entry);
+    }
+
+    private void writeRecord(String record) throws IOException {
+        journal.write(record);
+        journal.newLine();
+    }
+
+    /**
+     * Метод восстанавливает очередь: читает журнал, отбрасывает запросы без файлов, добавляет файлы без записей
+     * и переписывает журнал заново
+     */
+    private void recover(int defaultPriority) throws IOException {
+        if (Files.exists(journalFile)) {
+            for (String line : Files.readAllLines(journalFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 5);
+                try {
+                    if (fields[0].equals("A") && fields.length == 5) {
+                        Entry entry = new Entry(Long.parseLong(fields[1]), fields[4], Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+                        entries.put(entry.seq, entry);
+                        nextSeq = Math.max(nextSeq, entry.seq + 1);
+                    } else if (fields[0].equals("D") && fields.length == 2) {
+                        entries.remove(Long.parseLong(fields[1]));
+                    }
+                } catch (NumberFormatException e) {
+                    // Недописанная при аварийном завершении строка
+                    LOG.error(String.format("Пропущена поврежденная запись журнала %s: %s", journalFile, line));
+                }
+            }
+        }
+        Set<String> journaled = new HashSet<>();
+        List<Entry> recovered = new ArrayList<>(entries.values());
+        entries.clear();
+        for (Entry entry : recovered) {
+            if (Files.exists(resolve(entry)) && journaled.add(entry.fileName)) {
+                enqueue(entry);
+            }
+        }
+        // Файлы без записей в журнале и файлы из подкаталогов приоритетов прежних версий
+        int orphans = 0;
+        // Каталог читается целиком до переноса файлов из подкаталогов, чтобы перенесенные файлы не попали в очередь дважды
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(spoolDir)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        List<Path> priorityDirs = new ArrayList<>();
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            if (Files.isDirectory(path)) {
+                priorityDirs.add(path);
+            } else if (!journaled.contains(name)) {
+                enqueue(new Entry(nextSeq++, name, defaultPriority, Files.getLastModifiedTime(path).toMillis()));
+                orphans++;
+            }
+        }
+        for (Path dir : priorityDirs) {
+            orphans += importPriorityDir(dir);
+        }
+        compact();
+        LOG.info(String.format("Очередь подготовленных запросов восстановлена: %d запросов, из них %d без записи в журнале.", entries.size(), orphans));
+    }
+
+    /**
+     * Метод переносит файлы подкаталога приоритета prepared/<приоритет> прежних версий в каталог prepared и ставит их в очередь
+     */
+    private int importPriorityDir(Path dir) throws IOException {
+        int priority;
+        try {
+            priority = Integer.parseInt(dir.getFileName().toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        int imported = 0;
+        // Файлы переносятся порциями в порядке поступления, поэтому порядок отправки внутри приоритета сохраняется
+        DirectoryLister lister = new DirectoryLister(dir, IMPORT_CHUNK_SIZE);
+        List<Path> chunk;
+        while (!(chunk = lister.nextChunk()).isEmpty()) {
+            for (Path file : chunk) {
+                Path target = moveToSpool(file, priority);
+                enqueue(new Entry(nextSeq++, target.getFileName().toString(), priority, Files.getLastModifiedTime(target).toMillis()));
+                imported++;
+            }
+        }
+        return imported;
+    }
+
+    /**
+     * Метод переносит файл из подкаталога приоритета в каталог prepared. Если файл с таким именем там уже есть
+     * (в том числе перенесенный из другого подкаталога), то переносимый файл получает имя с префиксом приоритета,
+     * чтобы ни один запрос не был перезаписан.
+     *
+     * @return Файл в каталоге prepared
+     */
+    private Path moveToSpool(Path file, int priority) throws IOException {
+        String name = file.getFileName().toString();
+        for (int attempt = 0; ; attempt++) {
+            String targetName = attempt == 0 ? name : attempt == 1 ? priority + "_" + name : priority + "_" + attempt + "_" + name;
+            Path target = spoolDir.resolve(targetName);
+            try {
+                // Без REPLACE_EXISTING перенос не затрет существующий файл
+                Files.move(file, target);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            if (attempt > 0) {
+                LOG.info(String.format("Файл %s из %s перенесен в %s под именем %s: файл с таким именем уже есть.", name, file.getParent(), spoolDir, targetName));
+            }
+            return target;
+        }
+    }
+
+    /**
+     * Метод переписывает журнал, оставляя только ожидающие запросы, и атомарно заменяет им прежний
+     */
+    private void compact() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        Path tmpFile = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            for (Entry entry : entries.values()) {
+                writer.write(String.format("A\t%d\t%d\t%d\t%s", entry.seq, entry.priority, entry.deadline, entry.fileName));
+                writer.newLine();
+            }
+        }
+        Files.move(tmpFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        deadRecords = 0;
+    }
+
+    /**
+     * Подготовленный запрос в очереди
+     */
+    public static class Entry {
+        public final long seq;          // Номер записи журнала (порядок поступления)
+        public final String fileName;   // Имя файла в каталоге prepared
+        public final int priority;      // Приоритет вида сведений
+        public final long deadline;     // Крайний срок запроса
+
+        private Entry(long seq, String fileName, int priority, long deadline) {
+            this.seq = seq;
+            this.fileName = fileName;
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package ru.hemulen.converter.utils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Класс откладывает повторную обработку файлов, которые не удалось обработать по временной причине
+ * (ответ не распарсился, адаптер еще не сохранил вложения). Вместо повторного разбора файла в каждом цикле
+ * файл получает время следующей попытки: задержка растет экспоненциально от retryDelay до maxRetryDelay,
+ * а после maxAttempts неудачных попыток scheduleRetry возвращает false, и обработчик убирает файл из очереди.
+ * Очередь хранится только в памяти: после перезапуска все файлы обрабатываются заново с первой попытки.
+ * <p>
+ * Метод isDue подходит в качестве фильтра DirectoryLister: отложенные файлы не выдаются в порции,
+ * пока не наступит время их следующей попытки.
+ */
+public class RetryScheduler {
+    private final long retryDelay;      // Задержка перед первой повторной попыткой
+    private final long maxRetryDelay;   // Максимальная задержка между попытками
+    private final int maxAttempts;      // Количество неудачных попыток, после которого файл больше не повторяется
+    private final Map<Path, Attempt> attempts = new ConcurrentHashMap<>();  // Отложенные файлы
+
+    public RetryScheduler(long retryDelay, long maxRetryDelay, int maxAttempts) {
+        this.retryDelay = Math.max(retryDelay, 1);
+        this.maxRetryDelay = Math.max(maxRetryDelay, this.retryDelay);
+        this.maxAttempts = Math.max(maxAttempts, 1);
+    }
+
+    /**
+     * Метод проверяет, можно ли снова выдать файл на обработку. Подходит в качестве фильтра DirectoryLister.
+     *
+     * @param path       Проверяемый файл
+     * @param attributes Атрибуты файла, прочитанные при листинге каталога
+     * @return true, если файл не откладывался или время его следующей попытки наступило
+     */
+    public boolean isDue(Path path, BasicFileAttributes attributes) {
+        Attempt attempt = attempts.get(path);
+        return attempt == null || attempt.nextTime <= System.currentTimeMillis();
+    }
+
+    /**
+     * Метод регистрирует неудачную попытку обработки файла и откладывает следующую
+     *
+     * @param path Файл, который не удалось обработать
+     * @return true, если файл отложен, и false, если попытки исчерпаны и файл нужно убрать из очереди
+     */
+    public boolean scheduleRetry(Path path) {
+        Attempt previous = attempts.get(path);
+        int count = previous == null ? 1 : previous.count + 1;
+        if (count >= maxAttempts) {
+            attempts.remove(path);
+            return false;
+        }
+        // Задержка удваивается с каждой попыткой; сдвиг ограничен, чтобы не переполнить long
+        long delay = Math.min(retryDelay << Math.min(count - 1, 30), maxRetryDelay);
+        attempts.put(path, new Attempt(count, System.currentTimeMillis() + delay));
+        return true;
+    }
+
+    /**
+     * Метод возвращает номер следующей попытки обработки файла
+     *
+     * @param path Файл
+     * @return Количество уже сделанных неудачных попыток плюс один
+     */
+    public int getAttempt(Path path) {
+        Attempt attempt = attempts.get(path);
+        return attempt == null ? 1 : attempt.count + 1;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Метод забывает файл, который обработан или перемещен из каталога
+     *
+     * @param path Файл
+     */
+    public void forget(Path path) {
+        attempts.remove(path);
+    }
+
+    /**
+     * Метод возвращает время, через которое наступит следующая попытка хотя бы одного из отложенных файлов.
+     * Файлы, которые за это время исчезли из каталога, забываются.
+     *
+     * @return Время ожидания в миллисекундах или Long.MAX_VALUE, если отложенных файлов нет
+     */
+    public long getPendingDelay() {
+        long now = System.currentTimeMillis();
+        long delay = Long.MAX_VALUE;
+        Iterator<Map.Entry<Path, Attempt>> iterator = attempts.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Attempt> entry = iterator.next();
+            if (!Files.exists(entry.getKey())) {
+                iterator.remove();
+                continue;
+            }
+            delay = Math.min(delay, Math.max(entry.getValue().nextTime - now, 0));
+        }
+        return delay;
+    }
+
+    /**
+     * Неудачные попытки обработки файла
+     */
+    private static class Attempt {
+        private final int count;        // Количество неудачных попыток
+        private final long nextTime;    // Момент, после которого файл можно снова обрабатывать
+
+        private Attempt(int count, long nextTime) {
+            this.count = count;
+            this.nextTime = nextTime;
+        }
+    }
+}
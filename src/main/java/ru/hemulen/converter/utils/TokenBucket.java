@@ -0,0 +1,49 @@
+package ru.hemulen.converter.utils;
+
+/**
+ * Класс равномерно распределяет отправку запросов вида сведений в течение суток (алгоритм token bucket).
+ * Корзина вмещает burst разрешений и пополняется со скоростью rate разрешений в час.
+ * Каждый отправляемый запрос забирает одно разрешение. Если корзина пуста, разрешение выдается в долг:
+ * запрос получает время, когда его разрешение будет пополнено, и ждет в очереди до этого момента.
+ * Поэтому ожидающие запросы одного вида сведений выстраиваются друг за другом с интервалом 1/rate,
+ * и суточный лимит не расходуется за первые часы, а растягивается на весь день.
+ */
+public class TokenBucket {
+    private static final double HOUR = 3600000.0;
+    private final double ratePerMillis;     // Скорость пополнения корзины (разрешений в миллисекунду)
+    private final double capacity;          // Емкость корзины
+    private double tokens;                  // Текущее количество разрешений (отрицательное - выданные в долг)
+    private long lastRefill;                // Момент последнего пополнения
+
+    /**
+     * Конструктор создает полную корзину
+     *
+     * @param ratePerHour Количество разрешений, добавляемых в корзину за час
+     * @param burst       Емкость корзины, то есть количество запросов, которые можно отправить подряд
+     */
+    public TokenBucket(double ratePerHour, int burst) {
+        if (ratePerHour <= 0) {
+            throw new IllegalArgumentException("Темп отправки запросов должен быть положительным: " + ratePerHour);
+        }
+        this.ratePerMillis = ratePerHour / HOUR;
+        this.capacity = Math.max(burst, 1);
+        this.tokens = capacity;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Метод забирает одно разрешение, при необходимости в долг
+     *
+     * @return Время в миллисекундах, через которое запрос можно отправить (0 - можно отправлять сразу)
+     */
+    public synchronized long reserve() {
+        long now = System.currentTimeMillis();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerMillis);
+        lastRefill = now;
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens / ratePerMillis);
+    }
+}
@@ -0,0 +1,100 @@
+package ru.hemulen.converter.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Класс работает с таблицами стилей, заранее скомпилированными XSLTC в классы-translet'ы.
+ * <p>
+ * При сборке (фаза process-classes, см. pom.xml) метод main компилирует все *.xslt из src/main/resources
+ * в пакет TRANSLET_PACKAGE каталога target/classes, и translet'ы попадают в jar вместе с остальными классами.
+ * Во время работы метод loadTemplates загружает translet с classpath, а если его нет или он не подходит
+ * к текущей JVM (translet'ы зависят от внутренних классов XSLTC), компилирует таблицу стилей из ресурса jar.
+ */
+public class TransletCompiler {
+    private static final Logger LOG = LoggerFactory.getLogger(TransletCompiler.class.getName());
+    public static final String TRANSLET_PACKAGE = "ru.hemulen.converter.translets";
+
+    /**
+     * Точка входа для сборки: компилирует таблицы стилей каталога в translet'ы
+     *
+     * @param args Каталог с таблицами стилей и каталог, в который записываются классы translet'ов
+     */
+    public static void main(String[] args) throws IOException {
+        Path sourceDir = Paths.get(args[0]);
+        Path targetDir = Paths.get(args[1]);
+        int compiled = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(sourceDir, "*.xslt")) {
+            for (Path stylesheet : stream) {
+                String name = stylesheet.getFileName().toString();
+                try {
+                    TransformerFactory factory = TransformerFactory.newInstance();
+                    factory.setAttribute("generate-translet", Boolean.TRUE);
+                    factory.setAttribute("destination-directory", targetDir.toString());
+                    factory.setAttribute("package-name", TRANSLET_PACKAGE);
+                    factory.setAttribute("translet-name", getTransletName(name));
+                    factory.newTemplates(new StreamSource(stylesheet.toFile()));
+                    compiled++;
+                } catch (TransformerConfigurationException | IllegalArgumentException e) {
+                    // Сборка не прерывается: без translet'а таблица стилей будет скомпилирована при первом использовании
+                    LOG.error(String.format("Не удалось скомпилировать таблицу стилей %s.", name));
+                    LOG.error(e.getMessage());
+                }
+            }
+        }
+        LOG.info(String.format("Скомпилировано таблиц стилей: %d.", compiled));
+    }
+
+    /**
+     * Метод возвращает скомпилированную таблицу стилей из classpath: готовый translet или, если его нет, ресурс *.xslt
+     *
+     * @param name Имя файла таблицы стилей в ресурсах (например, ClientMessage.xslt)
+     * @return Скомпилированная таблица стилей
+     * @throws TransformerConfigurationException таблицы стилей нет в classpath или она содержит ошибку
+     */
+    public static synchronized Templates loadTemplates(String name) throws TransformerConfigurationException {
+        try {
+            TransformerFactory factory = TransformerFactory.newInstance();
+            factory.setAttribute("use-classpath", Boolean.TRUE);
+            factory.setAttribute("package-name", TRANSLET_PACKAGE);
+            factory.setAttribute("translet-name", getTransletName(name));
+            return factory.newTemplates(new StreamSource(name));
+        } catch (TransformerConfigurationException | IllegalArgumentException | LinkageError e) {
+            LOG.info(String.format("Готовый translet для таблицы стилей %s не найден, таблица стилей будет скомпилирована.", name));
+        }
+        URL resource = TransletCompiler.class.getResource("/" + name);
+        if (resource == null) {
+            throw new TransformerConfigurationException(String.format("Таблица стилей %s не найдена в classpath.", name));
+        }
+        return TransformerFactory.newInstance().newTemplates(new StreamSource(resource.toString()));
+    }
+
+    /**
+     * Метод строит имя класса translet'а из имени файла таблицы стилей
+     *
+     * @param name Имя файла таблицы стилей
+     * @return Имя класса без пакета
+     */
+    public static String getTransletName(String name) {
+        String baseName = name.endsWith(".xslt") ? name.substring(0, name.length() - ".xslt".length()) : name;
+        StringBuilder result = new StringBuilder(baseName.length());
+        for (char c : baseName.toCharArray()) {
+            result.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        if (result.length() == 0 || !Character.isJavaIdentifierStart(result.charAt(0))) {
+            result.insert(0, '_');
+        }
+        return result.toString();
+    }
+}
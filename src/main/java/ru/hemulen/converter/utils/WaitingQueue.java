@@ -0,0 +1,72 @@
+package ru.hemulen.converter.utils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Очередь запросов, которые уже получили разрешение на отправку (см. TokenBucket), но должны дождаться его времени,
+ * а также запросов, прием которых отложен, пока адаптер не разберет очередь отправки (см. Backpressure).
+ * Файлы остаются в каталоге requests, а очередь хранит только момент, когда каждый из них можно отправить.
+ * Метод isDue подходит в качестве фильтра DirectoryLister: ожидающие файлы не выдаются в порции и не разбираются
+ * повторно, пока не наступит их время. Очередь хранится только в памяти: после перезапуска разрешения выдаются заново.
+ */
+public class WaitingQueue {
+    private final Map<Path, Long> dueTimes = new ConcurrentHashMap<>();    // Ожидающие файлы и моменты их отправки
+
+    /**
+     * Метод ставит файл в очередь
+     *
+     * @param path  Файл запроса
+     * @param delay Время в миллисекундах, через которое запрос можно отправить
+     */
+    public void hold(Path path, long delay) {
+        dueTimes.put(path, System.currentTimeMillis() + Math.max(delay, 0));
+    }
+
+    /**
+     * Метод проверяет, можно ли выдать файл на обработку. Подходит в качестве фильтра DirectoryLister.
+     *
+     * @param path       Проверяемый файл
+     * @param attributes Атрибуты файла, прочитанные при листинге каталога
+     * @return true, если файл не ожидает или его время наступило
+     */
+    public boolean isDue(Path path, BasicFileAttributes attributes) {
+        Long dueTime = dueTimes.get(path);
+        return dueTime == null || dueTime <= System.currentTimeMillis();
+    }
+
+    /**
+     * Метод убирает файл из очереди
+     *
+     * @param path Файл запроса
+     * @return true, если файл ожидал в очереди, то есть разрешение на его отправку уже получено
+     */
+    public boolean take(Path path) {
+        return dueTimes.remove(path) != null;
+    }
+
+    /**
+     * Метод возвращает время, через которое наступит очередь хотя бы одного из ожидающих файлов.
+     * Файлы, которые за это время исчезли из каталога, забываются.
+     *
+     * @return Время ожидания в миллисекундах или Long.MAX_VALUE, если ожидающих файлов нет
+     */
+    public long getPendingDelay() {
+        long now = System.currentTimeMillis();
+        long delay = Long.MAX_VALUE;
+        Iterator<Map.Entry<Path, Long>> iterator = dueTimes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Long> entry = iterator.next();
+            if (!Files.exists(entry.getKey())) {
+                iterator.remove();
+                continue;
+            }
+            delay = Math.min(delay, Math.max(entry.getValue() - now, 0));
+        }
+        return delay;
+    }
+}
@@ -11,7 +11,6 @@ import java.io.StringWriter;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -23,6 +22,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import ru.hemulen.converter.utils.DocumentBuilderPool;
 
 public class XMLTransformHelper {
     private static final Logger LOGGER = Logger.getLogger(XMLTransformHelper.class.getName());
@@ -167,12 +167,8 @@ public class XMLTransformHelper {
         return getSyncDocumentBuilder(namespaceAware, false, false);
     }
 
-    public static synchronized DocumentBuilder getSyncDocumentBuilder(boolean namespaceAware, boolean coalescing, boolean ignoringElementContentWhitespace) throws ParserConfigurationException {
-        DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-        domFactory.setNamespaceAware(namespaceAware);
-        domFactory.setCoalescing(coalescing);
-        domFactory.setIgnoringElementContentWhitespace(ignoringElementContentWhitespace);
-        return domFactory.newDocumentBuilder();
+    public static DocumentBuilder getSyncDocumentBuilder(boolean namespaceAware, boolean coalescing, boolean ignoringElementContentWhitespace) throws ParserConfigurationException {
+        return DocumentBuilderPool.get(namespaceAware, coalescing, ignoringElementContentWhitespace);
     }
 
     public static Document getXMLDocument(String xml) throws Exception {
@@ -0,0 +1,39 @@
+package ru.hemulen.converter.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LogWriterTest {
+
+    /**
+     * NULL передается в строке COPY маркером \N, а не пустой строкой
+     */
+    @Test
+    void copyFieldWritesNullMarker() {
+        assertEquals("\\N", LogWriter.copyField(null));
+        assertEquals("", LogWriter.copyField(""));
+    }
+
+    /**
+     * Обратная косая черта, табуляция и переводы строки экранируются, чтобы не разбить строку COPY на поля и строки
+     */
+    @Test
+    void copyFieldEscapesDelimiters() {
+        assertEquals("a\\tb\\nc\\rd\\\\e", LogWriter.copyField("a\tb\nc\rd\\e"));
+        // Текст, похожий на маркер NULL, остается текстом
+        assertEquals("\\\\N", LogWriter.copyField("\\N"));
+    }
+
+    /**
+     * Обычный текст и значения других типов передаются без изменений
+     */
+    @Test
+    void copyFieldKeepsPlainValues() {
+        assertEquals("Запрос №1 'ЕГРН'", LogWriter.copyField("Запрос №1 'ЕГРН'"));
+        assertEquals("42", LogWriter.copyField(42));
+        assertEquals("2024-03-01 12:00:00.0", LogWriter.copyField(Timestamp.valueOf("2024-03-01 12:00:00")));
+    }
+}
@@ -0,0 +1,113 @@
+package ru.hemulen.converter.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SyncPositionTest {
+    private static final Timestamp SAVED = Timestamp.valueOf("2024-03-01 12:00:00");
+
+    /**
+     * Первая страница прохода читается с условием >= от штампа времени, отступившего на lookback
+     */
+    @Test
+    void passStartsLookbackBehindWithInclusiveCondition() throws SQLException {
+        SyncPosition position = new SyncPosition(SAVED, 60000);
+        position.startPass();
+        assertEquals("md.SENDING_DATE >= ?", position.condition("md.SENDING_DATE", "md.ID"));
+        Map<Integer, Object> parameters = new HashMap<>();
+        assertEquals(2, position.bind(recorder(parameters), 1));
+        assertEquals(Timestamp.valueOf("2024-03-01 11:59:00"), parameters.get(1));
+    }
+
+    /**
+     * Внутри прохода следующая страница начинается строго после последней прочитанной записи (keyset)
+     */
+    @Test
+    void nextPageStartsStrictlyAfterLastRow() throws SQLException {
+        SyncPosition position = new SyncPosition(SAVED, 60000);
+        position.startPass();
+        Timestamp last = Timestamp.valueOf("2024-03-01 12:00:05");
+        position.advance(last, "42");
+        assertEquals("(md.SENDING_DATE > ? OR (md.SENDING_DATE = ? AND md.ID > ?))", position.condition("md.SENDING_DATE", "md.ID"));
+        Map<Integer, Object> parameters = new HashMap<>();
+        assertEquals(6, position.bind(recorder(parameters), 3));
+        assertEquals(last, parameters.get(3));
+        assertEquals(last, parameters.get(4));
+        assertEquals("42", parameters.get(5));
+    }
+
+    /**
+     * Самый поздний штамп времени не отступает назад, когда проход перечитывает более ранние записи окна
+     */
+    @Test
+    void highWaterMarkNeverMovesBackwards() throws SQLException {
+        SyncPosition position = new SyncPosition(SAVED, 60000);
+        position.startPass();
+        position.advance(Timestamp.valueOf("2024-03-01 12:00:10"), "7");
+        assertEquals(Timestamp.valueOf("2024-03-01 12:00:10"), position.getTimestamp());
+
+        // Следующий проход повторно читает окно: записи с более ранним штампом не сдвигают позицию назад
+        position.startPass();
+        position.advance(Timestamp.valueOf("2024-03-01 11:59:30"), "3");
+        assertEquals(Timestamp.valueOf("2024-03-01 12:00:10"), position.getTimestamp());
+        // А новый проход снова отступает от самого позднего штампа, а не от последней прочитанной записи
+        position.startPass();
+        Map<Integer, Object> parameters = new HashMap<>();
+        position.bind(recorder(parameters), 1);
+        assertEquals(Timestamp.valueOf("2024-03-01 11:59:10"), parameters.get(1));
+    }
+
+    /**
+     * Пустое окно (записей нет) не меняет сохраняемый штамп времени
+     */
+    @Test
+    void emptyPassKeepsTimestamp() {
+        SyncPosition position = new SyncPosition(SAVED, 60000);
+        position.startPass();
+        position.startPass();
+        assertEquals(SAVED, position.getTimestamp());
+    }
+
+    /**
+     * Без отступа проход начинается точно с сохраненного штампа времени
+     */
+    @Test
+    void zeroLookbackStartsAtSavedTimestamp() throws SQLException {
+        Timestamp saved = Timestamp.valueOf("2024-03-01 12:00:00.123456");
+        SyncPosition position = new SyncPosition(saved, 0);
+        position.startPass();
+        Map<Integer, Object> parameters = new HashMap<>();
+        position.bind(recorder(parameters), 1);
+        assertEquals(saved, parameters.get(1));
+    }
+
+    /**
+     * Запрос, который запоминает установленные параметры по номерам
+     */
+    private static PreparedStatement recorder(Map<Integer, Object> parameters) {
+        return (PreparedStatement) Proxy.newProxyInstance(SyncPositionTest.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setTimestamp":
+                            parameters.put((Integer) args[0], args[1]);
+                            return null;
+                        case "setObject":
+                            // Идентификатор передается с типом, который определяет сервер
+                            assertEquals(Types.OTHER, args[2]);
+                            parameters.put((Integer) args[0], args[1]);
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,96 @@
+package ru.hemulen.converter.messages;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class KeywordExtractorTest {
+    private static final String REQUEST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<tns:Request xmlns:tns=\"urn://test/1.0\" xmlns:x=\"urn://other\" id=\"R-1\" x:id=\"ignored\">\n"
+            + "  <tns:Person>\n"
+            + "    <tns:Snils>123-456-789 00</tns:Snils>\n"
+            + "    <tns:Name code=\"A\">Иванов</tns:Name>\n"
+            + "    <tns:Name code=\"B\">Петров<!-- комментарий --></tns:Name>\n"
+            + "    <tns:Address><tns:Snils>не этот</tns:Snils></tns:Address>\n"
+            + "  </tns:Person>\n"
+            + "  <tns:Person>\n"
+            + "    <tns:Snils><![CDATA[987-654-321 00]]></tns:Snils>\n"
+            + "  </tns:Person>\n"
+            + "</tns:Request>\n";
+
+    /**
+     * Простые выражения вычисляются потоковым разбором с тем же результатом, что и XPath над DOM
+     */
+    @Test
+    void streamingMatchesXPath(@TempDir Path dir) throws Exception {
+        assertSameAsDom(dir,
+                "/*[local-name()=\"Request\"]/*[local-name()=\"Person\"]/*[local-name()=\"Snils\"]/text()",
+                "/*[local-name()='Request']/*[local-name()='Person']/*[local-name()='Name']/@code",
+                "/*[local-name() = \"Request\"]/@id",
+                "/*[local-name()=\"Request\"]/*[local-name()=\"Person\"]/*[local-name()=\"Name\"]/text()",
+                "/*[local-name()=\"Request\"]/*[local-name()=\"Missing\"]/text()");
+    }
+
+    /**
+     * Выражения, которые не разбираются потоковым способом, вычисляются через XPath вперемешку с простыми
+     */
+    @Test
+    void complexExpressionsFallBackToXPath(@TempDir Path dir) throws Exception {
+        assertSameAsDom(dir,
+                "//*[local-name()=\"Snils\"]/text()",
+                "/*[local-name()=\"Request\"]/*[local-name()=\"Person\"][1]/*[local-name()=\"Name\"]/text()",
+                "/*[local-name()=\"Request\"]/@id",
+                "/*[local-name()=\"Request\"]/*[local-name()=\"Person\"]/*[local-name()=\"Name\"][@code=\"B\"]/text()");
+    }
+
+    /**
+     * Порядок ключевых параметров определяется порядком выражений, а внутри выражения - порядком документа
+     */
+    @Test
+    void keepsExpressionAndDocumentOrder(@TempDir Path dir) throws Exception {
+        File file = write(dir);
+        KeywordExtractor extractor = new KeywordExtractor(new String[]{
+                "/*[local-name()=\"Request\"]/@id",
+                "/*[local-name()=\"Request\"]/*[local-name()=\"Person\"]/*[local-name()=\"Snils\"]/text()"});
+        assertEquals("R-1 123-456-789 00 987-654-321 00", extractor.extract(file));
+    }
+
+    /**
+     * Некорректное выражение обнаруживается при загрузке описания вида сведений
+     */
+    @Test
+    void rejectsInvalidExpression() {
+        assertThrows(Exception.class, () -> new KeywordExtractor(new String[]{"/*[local-name()=\"Request\""}));
+    }
+
+    private static void assertSameAsDom(Path dir, String... expressions) throws Exception {
+        File file = write(dir);
+        KeywordExtractor extractor = new KeywordExtractor(expressions);
+        for (String expression : expressions) {
+            KeywordExtractor single = new KeywordExtractor(new String[]{expression});
+            assertEquals(single.extract(parse(file)), single.extract(file), expression);
+        }
+        assertEquals(extractor.extract(parse(file)), extractor.extract(file));
+    }
+
+    private static File write(Path dir) throws Exception {
+        Path file = dir.resolve("request.xml");
+        Files.write(file, REQUEST.getBytes(StandardCharsets.UTF_8));
+        return file.toFile();
+    }
+
+    private static Document parse(File file) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(file);
+    }
+}
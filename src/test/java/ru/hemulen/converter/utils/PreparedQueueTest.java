@@ -0,0 +1,113 @@
+package ru.hemulen.converter.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PreparedQueueTest {
+
+    /**
+     * Запросы из каталогов prepared/<приоритет> прежних версий переносятся в prepared и ставятся в очередь своего приоритета
+     */
+    @Test
+    void recoversLegacyPriorityDirectories(@TempDir Path exchange) throws IOException {
+        Path spool = Files.createDirectory(exchange.resolve("prepared"));
+        Path legacy0 = Files.createDirectory(spool.resolve("0"));
+        Path legacy2 = Files.createDirectory(spool.resolve("2"));
+        createFile(legacy0.resolve("second.xml"), 2000);
+        createFile(legacy0.resolve("first.xml"), 1000);
+        createFile(legacy2.resolve("low.xml"), 500);
+        Path journal = exchange.resolve("prepared.journal");
+
+        PreparedQueue queue = new PreparedQueue(spool, journal, false, 3);
+        assertEquals(3, queue.size());
+        assertFalse(Files.exists(legacy0.resolve("first.xml")));
+        assertTrue(Files.exists(spool.resolve("first.xml")));
+        Map<Integer, PreparedQueue.Entry> heads = queue.heads();
+        assertEquals(2, heads.size());
+        // Внутри приоритета сохраняется порядок поступления
+        assertEquals("first.xml", heads.get(0).fileName);
+        assertEquals("low.xml", heads.get(2).fileName);
+        queue.remove(heads.get(0));
+        assertEquals("second.xml", queue.heads().get(0).fileName);
+        queue.close();
+
+        // После перезапуска очередь восстанавливается из журнала без отправленных запросов
+        Files.delete(spool.resolve("first.xml"));
+        PreparedQueue restored = new PreparedQueue(spool, journal, false, 3);
+        assertEquals(2, restored.size());
+        assertEquals("second.xml", restored.heads().get(0).fileName);
+        assertEquals("low.xml", restored.heads().get(2).fileName);
+        restored.close();
+    }
+
+    /**
+     * Пустой каталог приоритета прежней версии не мешает восстановлению очереди
+     */
+    @Test
+    void recoversFromEmptyLegacyDirectory(@TempDir Path exchange) throws IOException {
+        Path spool = Files.createDirectory(exchange.resolve("prepared"));
+        Files.createDirectory(spool.resolve("0"));
+
+        PreparedQueue queue = new PreparedQueue(spool, exchange.resolve("prepared.journal"), false, 3);
+        assertEquals(0, queue.size());
+        assertTrue(queue.heads().isEmpty());
+        queue.close();
+    }
+
+    /**
+     * Одноименные файлы разных подкаталогов приоритетов и каталога prepared не затирают друг друга
+     */
+    @Test
+    void keepsLegacyFilesWithClashingNames(@TempDir Path exchange) throws IOException {
+        Path spool = Files.createDirectory(exchange.resolve("prepared"));
+        createFile(spool.resolve("same.xml"), 100);
+        createFile(Files.createDirectory(spool.resolve("0")).resolve("same.xml"), 200);
+        createFile(Files.createDirectory(spool.resolve("1")).resolve("same.xml"), 300);
+
+        PreparedQueue queue = new PreparedQueue(spool, exchange.resolve("prepared.journal"), false, 3);
+        assertEquals(3, queue.size());
+        Map<Integer, PreparedQueue.Entry> heads = queue.heads();
+        assertEquals("0_same.xml", heads.get(0).fileName);
+        assertEquals("1_same.xml", heads.get(1).fileName);
+        assertEquals("same.xml", heads.get(3).fileName);
+        for (PreparedQueue.Entry entry : heads.values()) {
+            assertTrue(Files.exists(queue.resolve(entry)));
+        }
+        queue.close();
+    }
+
+    /**
+     * Запрос ставится в очередь в памяти, даже если журнал не удалось записать
+     */
+    @Test
+    void queuesEntryWhenJournalWriteFails(@TempDir Path exchange) throws IOException {
+        Path spool = Files.createDirectory(exchange.resolve("prepared"));
+        PreparedQueue queue = new PreparedQueue(spool, exchange.resolve("prepared.journal"), false, 3);
+        // Закрытый журнал не принимает записи
+        queue.close();
+        Path file = spool.resolve("request.xml");
+        createFile(file, 100);
+        try {
+            queue.add(file, 1, 100);
+        } catch (IOException e) {
+            // Ошибка журнала сообщается вызывающему методу
+        }
+        assertEquals(1, queue.size());
+        assertEquals("request.xml", queue.heads().get(1).fileName);
+    }
+
+    private static void createFile(Path file, long modified) throws IOException {
+        Files.write(file, new byte[]{'<', '/', '>'});
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+    }
+}
@@ -0,0 +1,91 @@
+package ru.hemulen.converter.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetrySchedulerTest {
+    // Допуск на время выполнения теста (мс)
+    private static final long TOLERANCE = 1000;
+
+    /**
+     * Задержка удваивается с каждой неудачной попыткой до maxRetryDelay, после maxAttempts попыток файл забывается
+     */
+    @Test
+    void doublesDelayUpToLimitAndGivesUp(@TempDir Path dir) throws IOException {
+        Path file = Files.createFile(dir.resolve("response.xml"));
+        RetryScheduler scheduler = new RetryScheduler(100000, 300000, 5);
+        assertEquals(1, scheduler.getAttempt(file));
+
+        assertTrue(scheduler.scheduleRetry(file));
+        assertAbout(100000, scheduler.getPendingDelay());
+        assertEquals(2, scheduler.getAttempt(file));
+        assertTrue(scheduler.scheduleRetry(file));
+        assertAbout(200000, scheduler.getPendingDelay());
+        // Дальше задержка ограничена maxRetryDelay
+        assertTrue(scheduler.scheduleRetry(file));
+        assertAbout(300000, scheduler.getPendingDelay());
+        assertTrue(scheduler.scheduleRetry(file));
+        assertAbout(300000, scheduler.getPendingDelay());
+        assertEquals(5, scheduler.getAttempt(file));
+
+        // Пятая неудачная попытка - последняя
+        assertFalse(scheduler.scheduleRetry(file));
+        assertEquals(1, scheduler.getAttempt(file));
+        assertEquals(Long.MAX_VALUE, scheduler.getPendingDelay());
+    }
+
+    /**
+     * Отложенный файл не выдается на обработку, пока не наступит время следующей попытки
+     */
+    @Test
+    void holdsFileUntilRetryTime(@TempDir Path dir) throws IOException, InterruptedException {
+        Path waiting = Files.createFile(dir.resolve("waiting.xml"));
+        Path ready = Files.createFile(dir.resolve("ready.xml"));
+        Path fresh = Files.createFile(dir.resolve("fresh.xml"));
+        RetryScheduler scheduler = new RetryScheduler(100000, 100000, 3);
+        RetryScheduler fast = new RetryScheduler(1, 1, 3);
+        scheduler.scheduleRetry(waiting);
+        fast.scheduleRetry(ready);
+        Thread.sleep(10);
+
+        assertFalse(scheduler.isDue(waiting, null));
+        assertTrue(fast.isDue(ready, null));
+        assertTrue(scheduler.isDue(fresh, null));
+        assertEquals(0L, fast.getPendingDelay());
+
+        // Обработанный файл забывается и снова выдается сразу
+        scheduler.forget(waiting);
+        assertTrue(scheduler.isDue(waiting, null));
+        assertEquals(Long.MAX_VALUE, scheduler.getPendingDelay());
+    }
+
+    /**
+     * Файлы, исчезнувшие из каталога, не задерживают ожидание и забываются
+     */
+    @Test
+    void forgetsMissingFiles(@TempDir Path dir) throws IOException {
+        Path gone = Files.createFile(dir.resolve("gone.xml"));
+        Path kept = Files.createFile(dir.resolve("kept.xml"));
+        RetryScheduler scheduler = new RetryScheduler(100000, 400000, 5);
+        scheduler.scheduleRetry(gone);
+        scheduler.scheduleRetry(kept);
+        scheduler.scheduleRetry(kept);
+        Files.delete(gone);
+
+        assertAbout(200000, scheduler.getPendingDelay());
+        assertEquals(1, scheduler.getAttempt(gone));
+        assertEquals(3, scheduler.getAttempt(kept));
+    }
+
+    private static void assertAbout(long expected, long actual) {
+        assertTrue(actual <= expected && actual > expected - TOLERANCE, "Ожидалось около " + expected + " мс, получено " + actual);
+    }
+}
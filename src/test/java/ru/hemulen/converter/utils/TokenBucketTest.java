@@ -0,0 +1,49 @@
+package ru.hemulen.converter.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+    // Допуск на время выполнения теста (мс)
+    private static final long TOLERANCE = 1000;
+
+    /**
+     * Первые burst запросов отправляются сразу, следующие выстраиваются в очередь с интервалом 1/rate
+     */
+    @Test
+    void spreadsRequestsAfterBurst() {
+        // 36 разрешений в час - одно разрешение в 100 секунд
+        TokenBucket bucket = new TokenBucket(36, 2);
+        assertEquals(0L, bucket.reserve());
+        assertEquals(0L, bucket.reserve());
+        assertAbout(100000, bucket.reserve());
+        assertAbout(200000, bucket.reserve());
+        assertAbout(300000, bucket.reserve());
+    }
+
+    /**
+     * Емкость корзины меньше одного разрешения не бывает: первый запрос всегда отправляется сразу
+     */
+    @Test
+    void zeroBurstAllowsFirstRequest() {
+        TokenBucket bucket = new TokenBucket(36, 0);
+        assertEquals(0L, bucket.reserve());
+        assertAbout(100000, bucket.reserve());
+    }
+
+    /**
+     * Нулевой или отрицательный темп отправки отклоняется при создании корзины
+     */
+    @Test
+    void rejectsNonPositiveRate() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(-1, 1));
+    }
+
+    private static void assertAbout(long expected, long actual) {
+        assertTrue(actual <= expected && actual > expected - TOLERANCE, "Ожидалось около " + expected + " мс, получено " + actual);
+    }
+}